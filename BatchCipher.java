@@ -0,0 +1,268 @@
+/**
+ * @author Canberk Aslan
+ * Batch mode, encrypts/decrypts many files in a single run. The files are
+ * listed in a manifest or picked from a directory with a glob pattern, the key
+ * file is read once and the files are processed on a bounded pool of workers.
+ * Workers keep their cipher engines between files so the key setup is done
+ * once per thread instead of once per file. Small files are encrypted in
+ * groups with their CBC/CFB/OFB chains interleaved.
+ *
+ * Usage: java BatchCipher -e|-d -i <manifest|directory> -o <output directory>
+ *        DES|3DES <mode> <keyfile> [-g glob] [-t threads] [-backend jce|java|bitslice]
+ *        [-p zero|pkcs7|none|cts]
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+
+public class BatchCipher {
+  /* files up to this size are encrypted together with MultiStreamCipher */
+  public static final long SMALL_FILE = 64 * 1024;
+
+  /**
+   * Validates arguments, collects the files and runs them on the worker pool.
+   * Every file gets its own run.log line, a summary line is added at the end.
+   *
+   * @param args
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (!validateArguments(args))
+      throw new Error("Bad command line arguments");
+
+    String algorithm = args[5],
+        algorithmNormalized = algorithm.equals("DES") ? "DES" : "TripleDES",
+        type = args[0].equals("-e") ? "enc" : "dec",
+        mode = args[6],
+        keys[] = FileIO.readKeysFromFile(args[7]);
+    Padding padding = Padding.of(FileCipher.option(args, "-p", "zero"));
+
+    System.setProperty(BlockEngine.BACKEND_PROPERTY, FileCipher.option(args, "-backend", "jce"));
+
+    byte[] iv = keys[0].getBytes(FileIO.ISO_8859_1),
+        key = keys[1].getBytes(FileIO.ISO_8859_1),
+        nonce = keys[2].getBytes(FileIO.ISO_8859_1);
+
+    int threads = Integer.parseInt(
+        FileCipher.option(args, "-t", String.valueOf(Runtime.getRuntime().availableProcessors())));
+    Path outputDirectory = Paths.get(args[4]);
+    Files.createDirectories(outputDirectory);
+    List<Path[]> jobs = collectFiles(Paths.get(args[2]), FileCipher.option(args, "-g", "*"), outputDirectory);
+
+    /* the queue is bounded, when it is full the submitting thread runs the job itself */
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(threads * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+    AtomicLong totalBytes = new AtomicLong();
+    List<List<Path[]>> units = isInterleaved(type, mode, padding)
+        ? groupSmallFiles(jobs, mode.equals("CBC") && padding == Padding.NONE)
+        : jobs.stream().map(Collections::singletonList).collect(Collectors.toList());
+    List<Future<?>> results = new ArrayList<>();
+    long start = System.currentTimeMillis();
+
+    for (List<Path[]> unit : units)
+      results.add(pool.submit(() -> {
+        long fileStart = System.currentTimeMillis();
+        for (Path[] job : unit)
+          if (job[1].getParent() != null)
+            Files.createDirectories(job[1].getParent());
+
+        if (unit.size() > 1) {
+          encryptInterleaved(unit, key, iv, algorithmNormalized, CipherMode.valueOf(mode), padding);
+        } else {
+          CipherStream cipherStream = new CipherStream(key, iv, nonce, algorithmNormalized, mode, type, padding);
+          try (InputStream in = Files.newInputStream(unit.get(0)[0]);
+              OutputStream out = Files.newOutputStream(unit.get(0)[1])) {
+            cipherStream.run(in, out);
+          }
+        }
+
+        for (Path[] job : unit) {
+          totalBytes.addAndGet(Files.size(job[0]));
+          FileIO.appendLog(job[0] + " " + job[1] + " " + type + " " + algorithm + " " + mode + " "
+              + (System.currentTimeMillis() - fileStart));
+        }
+        return null;
+      }));
+
+    int failed = 0;
+    for (int i = 0; i < results.size(); i++) {
+      try {
+        results.get(i).get();
+      } catch (ExecutionException e) {
+        for (Path[] job : units.get(i)) {
+          failed++;
+          System.err.println("ERROR :: " + job[0] + " " + e.getCause());
+        }
+      }
+    }
+
+    pool.shutdown();
+    long elapsed = Math.max(1, System.currentTimeMillis() - start);
+    String summary = String.format(Locale.ROOT, "batch %s %s %s files=%d failed=%d bytes=%d ms=%d MB/s=%.2f", type,
+        algorithm, mode, jobs.size(), failed, totalBytes.get(), elapsed,
+        totalBytes.get() / (1024.0 * 1024.0) / (elapsed / 1000.0));
+    FileIO.appendLog(summary);
+    System.out.println(summary);
+  }
+
+  /**
+   * CBC, CFB and OFB encryption of small files is interleaved, the other
+   * modes are not chained or decrypt in parallel already
+   */
+  public static boolean isInterleaved(String type, String mode, Padding padding) {
+    return type.equals("enc") && padding != Padding.CTS
+        && (mode.equals("CBC") || mode.equals("CFB") || mode.equals("OFB"));
+  }
+
+  /**
+   * Files up to SMALL_FILE bytes are put in groups of MultiStreamCipher.LANES,
+   * larger files stay on their own and are streamed. When the files have to be
+   * aligned, unaligned ones also stay on their own so they fail alone.
+   *
+   * @param jobs
+   * @param aligned
+   * @return groups of input and output path pairs
+   * @throws IOException
+   */
+  public static List<List<Path[]>> groupSmallFiles(List<Path[]> jobs, boolean aligned) throws IOException {
+    List<List<Path[]>> units = new ArrayList<>();
+    List<Path[]> group = new ArrayList<>();
+
+    for (Path[] job : jobs) {
+      long size = Files.size(job[0]);
+      if (size > SMALL_FILE || (aligned && size % CipherStream.BLOCK_SIZE != 0)) {
+        units.add(Collections.singletonList(job));
+        continue;
+      }
+
+      group.add(job);
+      if (group.size() == MultiStreamCipher.LANES) {
+        units.add(group);
+        group = new ArrayList<>();
+      }
+    }
+
+    if (!group.isEmpty())
+      units.add(group);
+
+    return units;
+  }
+
+  /**
+   * Reads a group of small files, encrypts them with their chains advanced
+   * together and writes the results
+   *
+   * @throws IOException
+   * @throws GeneralSecurityException
+   */
+  private static void encryptInterleaved(List<Path[]> group, byte[] key, byte[] iv, String algorithm,
+      CipherMode mode, Padding padding) throws IOException, GeneralSecurityException {
+    byte[][] messages = new byte[group.size()][];
+    for (int i = 0; i < messages.length; i++)
+      messages[i] = Files.readAllBytes(group.get(i)[0]);
+
+    MultiStreamCipher cipher = new MultiStreamCipher(mode, key, algorithm);
+    cipher.setPadding(padding);
+    byte[][] encrypted = cipher.encrypt(messages, iv);
+
+    for (int i = 0; i < encrypted.length; i++)
+      Files.write(group.get(i)[1], encrypted[i]);
+  }
+
+  /**
+   * If the input is a directory, the files matching the glob are taken, if it
+   * is a file, it is read as a manifest with one "input [output]" pair per line.
+   * Outputs without an explicit path go to the output directory with the same
+   * file name.
+   *
+   * @param input
+   * @param glob
+   * @param outputDirectory
+   * @return input and output path pairs
+   * @throws IOException
+   */
+  public static List<Path[]> collectFiles(Path input, String glob, Path outputDirectory) throws IOException {
+    List<Path[]> jobs = new ArrayList<>();
+
+    if (Files.isDirectory(input)) {
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(input, glob)) {
+        for (Path file : files)
+          if (Files.isRegularFile(file))
+            jobs.add(new Path[] { file, outputDirectory.resolve(file.getFileName()) });
+      }
+
+      return jobs;
+    }
+
+    for (String line : Files.readAllLines(input, FileIO.UTF_8)) {
+      String[] paths = line.trim().split("\\s+");
+      if (paths[0].isEmpty())
+        continue;
+
+      Path file = Paths.get(paths[0]);
+      Path output = paths.length > 1 ? Paths.get(paths[1]) : outputDirectory.resolve(file.getFileName());
+      jobs.add(new Path[] { file, output });
+    }
+
+    return jobs;
+  }
+
+  /**
+   * Same positional arguments as FileCipher, the input is a manifest or a
+   * directory and the output is a directory. -g, -t, -backend and -p can follow
+   * as pairs.
+   *
+   * @param args
+   * @return true if arguments are valid, false otherwise
+   */
+  public static boolean validateArguments(String[] args) {
+    if (args.length < 8 || (args.length - 8) % 2 != 0)
+      return false;
+
+    for (int i = 8; i < args.length; i += 2)
+      if (!(args[i].equals("-g") && isGlob(args[i + 1]))
+          && !(args[i].equals("-t") && args[i + 1].matches("[1-9][0-9]{0,3}"))
+          && !(args[i].equals("-backend") && BlockEngine.isBackend(args[i + 1]))
+          && !(args[i].equals("-p") && FileCipher.isPadding(args[i + 1])))
+        return false;
+
+    return (args[1].equals("-i") && args[3].equals("-o")
+        && (args[0].equals("-e") || args[0].equals("-d"))
+        && (args[5].equals("DES") || args[5].equals("3DES"))
+        && (args[6].equals("CBC") || args[6].equals("CFB")
+            || args[6].equals("CTR") || args[6].equals("ECB") || args[6].equals("OFB")));
+  }
+
+  /**
+   * @param glob
+   * @return true if the pattern can be used to pick files of a directory
+   */
+  private static boolean isGlob(String glob) {
+    try {
+      FileSystems.getDefault().getPathMatcher("glob:" + glob);
+      return !glob.isEmpty();
+    } catch (PatternSyntaxException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * @author Canberk Aslan
+ * Bitsliced DES/TripleDES engine for the modes with independent blocks (ECB,
+ * CTR). 64 blocks are transposed into 64 bit planes, plane i holds bit i of
+ * every block, so a permutation only renames planes, the key is mixed in with
+ * one xor per plane and the S-boxes are the boolean circuits of
+ * BitslicedSboxes evaluated on all 64 blocks at once. A bitsliced pass has no
+ * table lookups, its time does not depend on the data or the key.
+ * Single blocks (the chained modes, the ByteBuffer and mapped file paths) and
+ * batches under MIN_BATCH go through the table driven DesEngine with the same
+ * subkeys, so only batches of MIN_BATCH blocks or more run in constant time.
+ */
+
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+public class BitslicedDes extends DesEngine {
+  /* blocks encrypted in one pass, one per bit of a long */
+  public static final int BATCH = 64;
+  /* smaller batches are faster block by block */
+  public static final int MIN_BATCH = 16;
+
+  private static final int[] E = { 32, 1, 2, 3, 4, 5, 4, 5, 6, 7, 8, 9, 8, 9, 10, 11, 12, 13, 12, 13, 14, 15, 16,
+      17, 16, 17, 18, 19, 20, 21, 20, 21, 22, 23, 24, 25, 24, 25, 26, 27, 28, 29, 28, 29, 30, 31, 32, 1 };
+
+  /* every subkey bit as a plane of zeros or ones, 48 per round */
+  private final long[] keyPlanes;
+  /* scratch planes, the engine is used by one thread at a time */
+  private final long[] planes = new long[BATCH];
+  private final long[] leftPlanes = new long[32];
+  private final long[] rightPlanes = new long[32];
+  private final long[] expanded = new long[48];
+  private final long[] substituted = new long[32];
+
+  /**
+   * @param algorithm DES or TripleDES
+   * @param key
+   * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+   * @throws InvalidKeyException
+   */
+  public BitslicedDes(String algorithm, byte[] key, int mode) throws InvalidKeyException {
+    super(algorithm, key, mode);
+
+    keyPlanes = new long[subkeys.length * 48];
+    for (int round = 0; round < subkeys.length; round++)
+      for (int i = 0; i < 48; i++)
+        keyPlanes[round * 48 + i] = -((subkeys[round] >>> (47 - i)) & 1);
+  }
+
+  @Override
+  public void processBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+    for (int done = 0; done < blocks; done += BATCH) {
+      int n = Math.min(BATCH, blocks - done), off = done * BLOCK_SIZE;
+
+      if (n < MIN_BATCH) {
+        super.processBlocks(in, inOff + off, out, outOff + off, n);
+        return;
+      }
+
+      for (int i = 0; i < n; i++)
+        planes[i] = BlockEngine.readBlock(in, inOff + off + i * BLOCK_SIZE);
+      Arrays.fill(planes, n, BATCH, 0);
+
+      processBatch(planes);
+
+      for (int i = 0; i < n; i++)
+        BlockEngine.writeBlock(planes[i], out, outOff + off + i * BLOCK_SIZE);
+    }
+  }
+
+  /**
+   * Encrypts/decrypts 64 blocks in place
+   *
+   * @param blocks 64 blocks, first byte of a block is the most significant
+   */
+  public void processBatch(long[] blocks) {
+    transpose(blocks);
+
+    /* the halves are swapped by swapping the arrays */
+    long[] left = leftPlanes, right = rightPlanes;
+    for (int i = 0; i < 32; i++) {
+      left[i] = blocks[IP[i] - 1];
+      right[i] = blocks[IP[i + 32] - 1];
+    }
+
+    for (int round = 0; round < subkeys.length; round++) {
+      int k = round * 48;
+      for (int i = 0; i < 48; i++)
+        expanded[i] = right[E[i] - 1] ^ keyPlanes[k + i];
+
+      BitslicedSboxes.s1(expanded[0], expanded[1], expanded[2], expanded[3], expanded[4], expanded[5],
+          substituted, 0);
+      BitslicedSboxes.s2(expanded[6], expanded[7], expanded[8], expanded[9], expanded[10], expanded[11],
+          substituted, 4);
+      BitslicedSboxes.s3(expanded[12], expanded[13], expanded[14], expanded[15], expanded[16], expanded[17],
+          substituted, 8);
+      BitslicedSboxes.s4(expanded[18], expanded[19], expanded[20], expanded[21], expanded[22], expanded[23],
+          substituted, 12);
+      BitslicedSboxes.s5(expanded[24], expanded[25], expanded[26], expanded[27], expanded[28], expanded[29],
+          substituted, 16);
+      BitslicedSboxes.s6(expanded[30], expanded[31], expanded[32], expanded[33], expanded[34], expanded[35],
+          substituted, 20);
+      BitslicedSboxes.s7(expanded[36], expanded[37], expanded[38], expanded[39], expanded[40], expanded[41],
+          substituted, 24);
+      BitslicedSboxes.s8(expanded[42], expanded[43], expanded[44], expanded[45], expanded[46], expanded[47],
+          substituted, 28);
+
+      for (int i = 0; i < 32; i++)
+        left[i] ^= substituted[P[i] - 1];
+
+      /* halves are swapped after every round except the last one of a DES pass */
+      if ((round + 1) % 16 != 0) {
+        long[] swap = left;
+        left = right;
+        right = swap;
+      }
+    }
+
+    /* the final permutation is the inverse of the initial one */
+    for (int i = 0; i < 32; i++) {
+      blocks[IP[i] - 1] = left[i];
+      blocks[IP[i + 32] - 1] = right[i];
+    }
+
+    transpose(blocks);
+  }
+
+  @Override
+  public void destroy() {
+    super.destroy();
+    Arrays.fill(keyPlanes, 0);
+    Arrays.fill(planes, 0);
+    Arrays.fill(leftPlanes, 0);
+    Arrays.fill(rightPlanes, 0);
+    Arrays.fill(expanded, 0);
+    Arrays.fill(substituted, 0);
+  }
+
+  /**
+   * Transposes the 64x64 bit matrix in place, bit j of row i (counted from the
+   * most significant bit) is swapped with bit i of row j. Blocks become bit
+   * planes and bit planes become blocks again.
+   */
+  static void transpose(long[] rows) {
+    long mask = 0x00000000FFFFFFFFL;
+    for (int width = 32; width != 0; width >>>= 1, mask ^= mask << width)
+      for (int i = 0; i < 64; i = (i + width + 1) & ~width) {
+        long swap = (rows[i] ^ (rows[i + width] >>> width)) & mask;
+        rows[i] ^= swap;
+        rows[i + width] ^= swap << width;
+      }
+  }
+}
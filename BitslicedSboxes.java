@@ -0,0 +1,588 @@
+/**
+ * @author Canberk Aslan
+ * DES S-boxes as boolean circuits for BitslicedDes. Every argument holds one
+ * input bit of 64 blocks (x0 is the first bit of the 6 bit group), the four
+ * output bits are written to out starting at off, first bit first.
+ * Each box is a decision diagram of its table in DesEngine.S: the outputs are
+ * split on four input bits with multiplexers (a ^ ((a ^ b) & s)), the two
+ * remaining bits are combined directly at the leaves, equal subtrees are
+ * shared between the four outputs and the order of the inputs is the one
+ * giving the fewest operations. No branch or memory access depends on the
+ * data, so the time is the same for every input.
+ */
+
+final class BitslicedSboxes {
+  private BitslicedSboxes() {
+  }
+
+  /**
+   * S1, decision over x0, x3, x5, x4 with the functions of x1 and x2 at the leaves
+   */
+  static void s1(long x0, long x1, long x2, long x3, long x4, long x5, long[] out, int off) {
+    long t0 = ~(x1 | x2);
+    long t1 = x1 | x2;
+    long t2 = t0 ^ ((t0 ^ t1) & x4);
+    long t3 = t1 ^ ((t1 ^ t0) & x4);
+    long t4 = t2 ^ ((t2 ^ t3) & x5);
+    long t5 = ~x1;
+    long t6 = x1 ^ x2;
+    long t7 = t5 ^ ((t5 ^ t6) & x4);
+    long t8 = t6 ^ ((t6 ^ x1) & x4);
+    long t9 = t7 ^ ((t7 ^ t8) & x5);
+    long t10 = t4 ^ ((t4 ^ t9) & x3);
+    long t11 = ~(x1 ^ x2);
+    long t12 = ~(x1 & x2);
+    long t13 = t11 ^ ((t11 ^ t12) & x4);
+    long t14 = t8 ^ ((t8 ^ t13) & x5);
+    long t15 = ~x2;
+    long t16 = t15 ^ ((t15 ^ t5) & x4);
+    long t17 = t0 ^ ((t0 ^ x1) & x4);
+    long t18 = t16 ^ ((t16 ^ t17) & x5);
+    long t19 = t14 ^ ((t14 ^ t18) & x3);
+    long t20 = t10 ^ ((t10 ^ t19) & x0);
+    long t21 = t11 ^ ((t11 ^ t5) & x4);
+    long t22 = ~x1 & x2;
+    long t23 = x1 | ~x2;
+    long t24 = t22 ^ ((t22 ^ t23) & x4);
+    long t25 = t21 ^ ((t21 ^ t24) & x5);
+    long t26 = t15 ^ ((t15 ^ x1) & x4);
+    long t27 = t12 ^ ((t12 ^ t0) & x4);
+    long t28 = t26 ^ ((t26 ^ t27) & x5);
+    long t29 = t25 ^ ((t25 ^ t28) & x3);
+    long t30 = t12 ^ ((t12 ^ t6) & x4);
+    long t31 = t30 ^ ((t30 ^ t27) & x5);
+    long t32 = x1 & ~x2;
+    long t33 = t11 ^ ((t11 ^ t32) & x4);
+    long t34 = x1 & x2;
+    long t35 = t34 ^ ((t34 ^ t1) & x4);
+    long t36 = t33 ^ ((t33 ^ t35) & x5);
+    long t37 = t31 ^ ((t31 ^ t36) & x3);
+    long t38 = t29 ^ ((t29 ^ t37) & x0);
+    long t39 = t6 ^ ((t6 ^ t12) & x4);
+    long t40 = t30 ^ ((t30 ^ t39) & x5);
+    long t41 = t6 ^ ((t6 ^ t34) & x4);
+    long t42 = t41 ^ ((t41 ^ t33) & x5);
+    long t43 = t40 ^ ((t40 ^ t42) & x3);
+    long t44 = x1 ^ ((x1 ^ x2) & x4);
+    long t45 = t44 ^ ((t44 ^ t33) & x5);
+    long t46 = x1 ^ ((x1 ^ t12) & x4);
+    long t47 = t7 ^ ((t7 ^ t46) & x5);
+    long t48 = t45 ^ ((t45 ^ t47) & x3);
+    long t49 = t43 ^ ((t43 ^ t48) & x0);
+    long t50 = t34 ^ ((t34 ^ t11) & x4);
+    long t51 = t44 ^ ((t44 ^ t50) & x5);
+    long t52 = t5 ^ ((t5 ^ t11) & x4);
+    long t53 = ~x1 | x2;
+    long t54 = t53 ^ ((t53 ^ t6) & x4);
+    long t55 = t52 ^ ((t52 ^ t54) & x5);
+    long t56 = t51 ^ ((t51 ^ t55) & x3);
+    long t57 = t15 ^ ((t15 ^ t6) & x4);
+    long t58 = t3 ^ ((t3 ^ t57) & x5);
+    long t59 = x1 ^ ((x1 ^ t6) & x4);
+    long t60 = t6 ^ ((t6 ^ x2) & x4);
+    long t61 = t59 ^ ((t59 ^ t60) & x5);
+    long t62 = t58 ^ ((t58 ^ t61) & x3);
+    long t63 = t56 ^ ((t56 ^ t62) & x0);
+    out[off] = t20;
+    out[off + 1] = t38;
+    out[off + 2] = t49;
+    out[off + 3] = t63;
+  }
+
+  /**
+   * S2, decision over x1, x4, x5, x2 with the functions of x0 and x3 at the leaves
+   */
+  static void s2(long x0, long x1, long x2, long x3, long x4, long x5, long[] out, int off) {
+    long t0 = ~x0;
+    long t1 = t0 ^ ((t0 ^ x0) & x2);
+    long t2 = x0 ^ ((x0 ^ t0) & x2);
+    long t3 = t1 ^ ((t1 ^ t2) & x5);
+    long t4 = x0 | x3;
+    long t5 = ~(x0 | x3);
+    long t6 = t4 ^ ((t4 ^ t5) & x2);
+    long t7 = ~x3;
+    long t8 = x0 ^ x3;
+    long t9 = t7 ^ ((t7 ^ t8) & x2);
+    long t10 = t6 ^ ((t6 ^ t9) & x5);
+    long t11 = t3 ^ ((t3 ^ t10) & x4);
+    long t12 = ~(x0 ^ x3);
+    long t13 = t12 ^ ((t12 ^ t7) & x2);
+    long t14 = t7 ^ ((t7 ^ x3) & x2);
+    long t15 = t13 ^ ((t13 ^ t14) & x5);
+    long t16 = t8 ^ ((t8 ^ x3) & x2);
+    long t17 = x3 ^ ((x3 ^ t12) & x2);
+    long t18 = t16 ^ ((t16 ^ t17) & x5);
+    long t19 = t15 ^ ((t15 ^ t18) & x4);
+    long t20 = t11 ^ ((t11 ^ t19) & x1);
+    long t21 = t8 ^ ((t8 ^ t12) & x2);
+    long t22 = t12 ^ ((t12 ^ t21) & x5);
+    long t23 = t0 ^ ((t0 ^ t8) & x2);
+    long t24 = t8 ^ ((t8 ^ t23) & x5);
+    long t25 = t22 ^ ((t22 ^ t24) & x4);
+    long t26 = t2 ^ ((t2 ^ t12) & x5);
+    long t27 = ~x0 | x3;
+    long t28 = x0 & x3;
+    long t29 = t27 ^ ((t27 ^ t28) & x2);
+    long t30 = x0 ^ ((x0 ^ t8) & x2);
+    long t31 = t29 ^ ((t29 ^ t30) & x5);
+    long t32 = t26 ^ ((t26 ^ t31) & x4);
+    long t33 = t25 ^ ((t25 ^ t32) & x1);
+    long t34 = ~(x0 & x3);
+    long t35 = t12 ^ ((t12 ^ t34) & x2);
+    long t36 = t35 ^ ((t35 ^ t13) & x5);
+    long t37 = ~x0 & x3;
+    long t38 = -1L;
+    long t39 = t37 | x2;
+    long t40 = t6 ^ ((t6 ^ t39) & x5);
+    long t41 = t36 ^ ((t36 ^ t40) & x4);
+    long t42 = t37 ^ ((t37 ^ t28) & x2);
+    long t43 = x0 ^ ((x0 ^ t27) & x2);
+    long t44 = t42 ^ ((t42 ^ t43) & x5);
+    long t45 = t12 ^ ((t12 ^ t4) & x2);
+    long t46 = 0L;
+    long t47 = t8 & ~x2;
+    long t48 = t45 ^ ((t45 ^ t47) & x5);
+    long t49 = t44 ^ ((t44 ^ t48) & x4);
+    long t50 = t41 ^ ((t41 ^ t49) & x1);
+    long t51 = t12 ^ ((t12 ^ x3) & x2);
+    long t52 = t51 ^ ((t51 ^ t7) & x5);
+    long t53 = x0 & ~x3;
+    long t54 = t27 ^ ((t27 ^ t53) & x2);
+    long t55 = t12 ^ ((t12 ^ t54) & x5);
+    long t56 = t52 ^ ((t52 ^ t55) & x4);
+    long t57 = t4 ^ ((t4 ^ t37) & x2);
+    long t58 = t9 ^ ((t9 ^ t57) & x5);
+    long t59 = t38 & x2;
+    long t60 = t1 ^ ((t1 ^ t59) & x5);
+    long t61 = t58 ^ ((t58 ^ t60) & x4);
+    long t62 = t56 ^ ((t56 ^ t61) & x1);
+    out[off] = t20;
+    out[off + 1] = t33;
+    out[off + 2] = t50;
+    out[off + 3] = t62;
+  }
+
+  /**
+   * S3, decision over x0, x1, x4, x3 with the functions of x2 and x5 at the leaves
+   */
+  static void s3(long x0, long x1, long x2, long x3, long x4, long x5, long[] out, int off) {
+    long t0 = ~x2;
+    long t1 = ~x5;
+    long t2 = t0 ^ ((t0 ^ t1) & x3);
+    long t3 = 0L;
+    long t4 = ~x2 | x5;
+    long t5 = t4 & x3;
+    long t6 = t2 ^ ((t2 ^ t5) & x4);
+    long t7 = ~(x2 ^ x5);
+    long t8 = x2 ^ ((x2 ^ t7) & x3);
+    long t9 = x2 ^ x5;
+    long t10 = t4 ^ ((t4 ^ t9) & x3);
+    long t11 = t8 ^ ((t8 ^ t10) & x4);
+    long t12 = t6 ^ ((t6 ^ t11) & x1);
+    long t13 = t1 ^ ((t1 ^ x5) & x3);
+    long t14 = x2 | x5;
+    long t15 = ~(x2 | x5);
+    long t16 = t14 ^ ((t14 ^ t15) & x3);
+    long t17 = t13 ^ ((t13 ^ t16) & x4);
+    long t18 = t7 ^ ((t7 ^ t9) & x3);
+    long t19 = t9 ^ ((t9 ^ t7) & x3);
+    long t20 = t18 ^ ((t18 ^ t19) & x4);
+    long t21 = t17 ^ ((t17 ^ t20) & x1);
+    long t22 = t12 ^ ((t12 ^ t21) & x0);
+    long t23 = t9 ^ ((t9 ^ x2) & x3);
+    long t24 = x5 ^ ((x5 ^ t1) & x3);
+    long t25 = t23 ^ ((t23 ^ t24) & x4);
+    long t26 = x2 & x5;
+    long t27 = t26 ^ ((t26 ^ t4) & x3);
+    long t28 = t1 ^ ((t1 ^ t0) & x3);
+    long t29 = t27 ^ ((t27 ^ t28) & x4);
+    long t30 = t25 ^ ((t25 ^ t29) & x1);
+    long t31 = t7 ^ ((t7 ^ t0) & x3);
+    long t32 = t1 ^ ((t1 ^ t26) & x3);
+    long t33 = t31 ^ ((t31 ^ t32) & x4);
+    long t34 = x2 | ~x5;
+    long t35 = x5 ^ ((x5 ^ t34) & x3);
+    long t36 = t9 ^ ((t9 ^ t35) & x4);
+    long t37 = t33 ^ ((t33 ^ t36) & x1);
+    long t38 = t30 ^ ((t30 ^ t37) & x0);
+    long t39 = t34 ^ ((t34 ^ x2) & x3);
+    long t40 = t39 ^ ((t39 ^ t19) & x4);
+    long t41 = t26 ^ ((t26 ^ t0) & x3);
+    long t42 = t23 ^ ((t23 ^ t41) & x4);
+    long t43 = t40 ^ ((t40 ^ t42) & x1);
+    long t44 = x2 & ~x5;
+    long t45 = t26 ^ ((t26 ^ t44) & x3);
+    long t46 = ~(x2 & x5);
+    long t47 = t46 ^ ((t46 ^ t26) & x3);
+    long t48 = t45 ^ ((t45 ^ t47) & x4);
+    long t49 = -1L;
+    long t50 = t7 | x3;
+    long t51 = t50 ^ ((t50 ^ t9) & x4);
+    long t52 = t48 ^ ((t48 ^ t51) & x1);
+    long t53 = t43 ^ ((t43 ^ t52) & x0);
+    long t54 = t24 ^ ((t24 ^ t9) & x4);
+    long t55 = t13 ^ ((t13 ^ t7) & x4);
+    long t56 = t54 ^ ((t54 ^ t55) & x1);
+    long t57 = t0 ^ ((t0 ^ t9) & x3);
+    long t58 = t57 ^ ((t57 ^ t8) & x4);
+    long t59 = t34 & ~x3;
+    long t60 = t59 ^ ((t59 ^ t10) & x4);
+    long t61 = t58 ^ ((t58 ^ t60) & x1);
+    long t62 = t56 ^ ((t56 ^ t61) & x0);
+    out[off] = t22;
+    out[off + 1] = t38;
+    out[off + 2] = t53;
+    out[off + 3] = t62;
+  }
+
+  /**
+   * S4, decision over x5, x0, x1, x2 with the functions of x3 and x4 at the leaves
+   */
+  static void s4(long x0, long x1, long x2, long x3, long x4, long x5, long[] out, int off) {
+    long t0 = x3 ^ x4;
+    long t1 = t0 ^ ((t0 ^ x3) & x2);
+    long t2 = x3 & ~x4;
+    long t3 = ~x3 | x4;
+    long t4 = t2 ^ ((t2 ^ t3) & x2);
+    long t5 = t1 ^ ((t1 ^ t4) & x1);
+    long t6 = ~x4;
+    long t7 = t6 ^ ((t6 ^ t3) & x2);
+    long t8 = ~(x3 ^ x4);
+    long t9 = t8 ^ ((t8 ^ t2) & x2);
+    long t10 = t7 ^ ((t7 ^ t9) & x1);
+    long t11 = t5 ^ ((t5 ^ t10) & x0);
+    long t12 = ~(x3 & x4);
+    long t13 = ~x3 & x4;
+    long t14 = t12 ^ ((t12 ^ t13) & x2);
+    long t15 = x3 & x4;
+    long t16 = x3 | x4;
+    long t17 = t15 ^ ((t15 ^ t16) & x2);
+    long t18 = t14 ^ ((t14 ^ t17) & x1);
+    long t19 = x3 | ~x4;
+    long t20 = t13 ^ ((t13 ^ t19) & x2);
+    long t21 = t20 ^ ((t20 ^ t8) & x1);
+    long t22 = t18 ^ ((t18 ^ t21) & x0);
+    long t23 = t11 ^ ((t11 ^ t22) & x5);
+    long t24 = ~x3;
+    long t25 = t8 ^ ((t8 ^ t24) & x2);
+    long t26 = t3 ^ ((t3 ^ t2) & x2);
+    long t27 = t25 ^ ((t25 ^ t26) & x1);
+    long t28 = x4 ^ ((x4 ^ t2) & x2);
+    long t29 = t0 ^ ((t0 ^ t3) & x2);
+    long t30 = t28 ^ ((t28 ^ t29) & x1);
+    long t31 = t27 ^ ((t27 ^ t30) & x0);
+    long t32 = t22 ^ ((t22 ^ t31) & x5);
+    long t33 = t19 ^ ((t19 ^ x4) & x2);
+    long t34 = t13 ^ ((t13 ^ t8) & x2);
+    long t35 = t33 ^ ((t33 ^ t34) & x1);
+    long t36 = t24 ^ ((t24 ^ t0) & x2);
+    long t37 = t19 ^ ((t19 ^ t13) & x2);
+    long t38 = t36 ^ ((t36 ^ t37) & x1);
+    long t39 = t35 ^ ((t35 ^ t38) & x0);
+    long t40 = t4 ^ ((t4 ^ t0) & x1);
+    long t41 = ~(x3 | x4);
+    long t42 = t3 ^ ((t3 ^ t41) & x2);
+    long t43 = t42 ^ ((t42 ^ t17) & x1);
+    long t44 = t40 ^ ((t40 ^ t43) & x0);
+    long t45 = t39 ^ ((t39 ^ t44) & x5);
+    long t46 = t26 ^ ((t26 ^ t8) & x1);
+    long t47 = t2 ^ ((t2 ^ t16) & x2);
+    long t48 = t12 ^ ((t12 ^ t41) & x2);
+    long t49 = t47 ^ ((t47 ^ t48) & x1);
+    long t50 = t46 ^ ((t46 ^ t49) & x0);
+    long t51 = t50 ^ ((t50 ^ t39) & x5);
+    out[off] = t23;
+    out[off + 1] = t32;
+    out[off + 2] = t45;
+    out[off + 3] = t51;
+  }
+
+  /**
+   * S5, decision over x2, x3, x4, x1 with the functions of x0 and x5 at the leaves
+   */
+  static void s5(long x0, long x1, long x2, long x3, long x4, long x5, long[] out, int off) {
+    long t0 = ~x5;
+    long t1 = x5 ^ ((x5 ^ t0) & x1);
+    long t2 = ~x0 | x5;
+    long t3 = t2 ^ ((t2 ^ x0) & x1);
+    long t4 = t1 ^ ((t1 ^ t3) & x4);
+    long t5 = x0 & x5;
+    long t6 = x0 ^ x5;
+    long t7 = t5 ^ ((t5 ^ t6) & x1);
+    long t8 = t6 ^ ((t6 ^ t2) & x1);
+    long t9 = t7 ^ ((t7 ^ t8) & x4);
+    long t10 = t4 ^ ((t4 ^ t9) & x3);
+    long t11 = x0 & ~x5;
+    long t12 = ~(x0 ^ x5);
+    long t13 = t11 ^ ((t11 ^ t12) & x1);
+    long t14 = x0 | ~x5;
+    long t15 = ~x0 & x5;
+    long t16 = t14 ^ ((t14 ^ t15) & x1);
+    long t17 = t13 ^ ((t13 ^ t16) & x4);
+    long t18 = ~x0;
+    long t19 = x0 ^ ((x0 ^ t0) & x1);
+    long t20 = t18 ^ ((t18 ^ t19) & x4);
+    long t21 = t17 ^ ((t17 ^ t20) & x3);
+    long t22 = t10 ^ ((t10 ^ t21) & x2);
+    long t23 = x0 | x5;
+    long t24 = t6 ^ ((t6 ^ t23) & x1);
+    long t25 = ~(x0 | x5);
+    long t26 = t25 ^ ((t25 ^ t12) & x1);
+    long t27 = t24 ^ ((t24 ^ t26) & x4);
+    long t28 = t12 ^ ((t12 ^ t6) & x1);
+    long t29 = t28 ^ ((t28 ^ t1) & x4);
+    long t30 = t27 ^ ((t27 ^ t29) & x3);
+    long t31 = t18 ^ ((t18 ^ t0) & x1);
+    long t32 = t23 ^ ((t23 ^ t5) & x1);
+    long t33 = t31 ^ ((t31 ^ t32) & x4);
+    long t34 = t6 ^ ((t6 ^ t12) & x1);
+    long t35 = t34 ^ ((t34 ^ t28) & x4);
+    long t36 = t33 ^ ((t33 ^ t35) & x3);
+    long t37 = t30 ^ ((t30 ^ t36) & x2);
+    long t38 = t6 ^ ((t6 ^ t5) & x1);
+    long t39 = t3 ^ ((t3 ^ t38) & x4);
+    long t40 = t15 ^ ((t15 ^ t18) & x1);
+    long t41 = x0 ^ ((x0 ^ t18) & x1);
+    long t42 = t40 ^ ((t40 ^ t41) & x4);
+    long t43 = t39 ^ ((t39 ^ t42) & x3);
+    long t44 = t0 ^ ((t0 ^ t23) & x1);
+    long t45 = t2 ^ ((t2 ^ t11) & x1);
+    long t46 = t44 ^ ((t44 ^ t45) & x4);
+    long t47 = t14 ^ ((t14 ^ t25) & x1);
+    long t48 = t25 ^ ((t25 ^ t23) & x1);
+    long t49 = t47 ^ ((t47 ^ t48) & x4);
+    long t50 = t46 ^ ((t46 ^ t49) & x3);
+    long t51 = t43 ^ ((t43 ^ t50) & x2);
+    long t52 = t15 ^ ((t15 ^ t14) & x1);
+    long t53 = t7 ^ ((t7 ^ t52) & x4);
+    long t54 = t11 ^ ((t11 ^ t18) & x1);
+    long t55 = t54 ^ ((t54 ^ t14) & x4);
+    long t56 = t53 ^ ((t53 ^ t55) & x3);
+    long t57 = t12 ^ ((t12 ^ t18) & x1);
+    long t58 = t57 ^ ((t57 ^ t6) & x4);
+    long t59 = ~(x0 & x5);
+    long t60 = t59 ^ ((t59 ^ t5) & x1);
+    long t61 = x5 ^ ((x5 ^ t12) & x1);
+    long t62 = t60 ^ ((t60 ^ t61) & x4);
+    long t63 = t58 ^ ((t58 ^ t62) & x3);
+    long t64 = t56 ^ ((t56 ^ t63) & x2);
+    out[off] = t22;
+    out[off + 1] = t37;
+    out[off + 2] = t51;
+    out[off + 3] = t64;
+  }
+
+  /**
+   * S6, decision over x0, x3, x5, x1 with the functions of x2 and x4 at the leaves
+   */
+  static void s6(long x0, long x1, long x2, long x3, long x4, long x5, long[] out, int off) {
+    long t0 = ~x4;
+    long t1 = x2 ^ x4;
+    long t2 = t0 ^ ((t0 ^ t1) & x1);
+    long t3 = ~x2 | x4;
+    long t4 = x2 & x4;
+    long t5 = t3 ^ ((t3 ^ t4) & x1);
+    long t6 = t2 ^ ((t2 ^ t5) & x5);
+    long t7 = x2 & ~x4;
+    long t8 = t7 ^ ((t7 ^ t3) & x1);
+    long t9 = t5 ^ ((t5 ^ t8) & x5);
+    long t10 = t6 ^ ((t6 ^ t9) & x3);
+    long t11 = ~x2;
+    long t12 = t7 ^ ((t7 ^ t11) & x1);
+    long t13 = t5 ^ ((t5 ^ t12) & x5);
+    long t14 = x2 | x4;
+    long t15 = t14 ^ ((t14 ^ x2) & x1);
+    long t16 = t2 ^ ((t2 ^ t15) & x5);
+    long t17 = t13 ^ ((t13 ^ t16) & x3);
+    long t18 = t10 ^ ((t10 ^ t17) & x0);
+    long t19 = ~(x2 | x4);
+    long t20 = t19 ^ ((t19 ^ t14) & x1);
+    long t21 = t14 ^ ((t14 ^ t19) & x1);
+    long t22 = t20 ^ ((t20 ^ t21) & x5);
+    long t23 = ~(x2 ^ x4);
+    long t24 = t23 ^ ((t23 ^ t11) & x1);
+    long t25 = t1 ^ ((t1 ^ t24) & x5);
+    long t26 = t22 ^ ((t22 ^ t25) & x3);
+    long t27 = ~x2 & x4;
+    long t28 = t27 ^ ((t27 ^ t23) & x1);
+    long t29 = t23 ^ ((t23 ^ t1) & x1);
+    long t30 = t28 ^ ((t28 ^ t29) & x5);
+    long t31 = ~(x2 & x4);
+    long t32 = t31 ^ ((t31 ^ t23) & x1);
+    long t33 = t1 ^ ((t1 ^ x4) & x1);
+    long t34 = t32 ^ ((t32 ^ t33) & x5);
+    long t35 = t30 ^ ((t30 ^ t34) & x3);
+    long t36 = t26 ^ ((t26 ^ t35) & x0);
+    long t37 = t4 ^ ((t4 ^ x2) & x1);
+    long t38 = t37 ^ ((t37 ^ t32) & x5);
+    long t39 = t27 ^ ((t27 ^ t1) & x1);
+    long t40 = t32 ^ ((t32 ^ t39) & x5);
+    long t41 = t38 ^ ((t38 ^ t40) & x3);
+    long t42 = t1 ^ ((t1 ^ t19) & x1);
+    long t43 = t27 ^ ((t27 ^ t31) & x1);
+    long t44 = t42 ^ ((t42 ^ t43) & x5);
+    long t45 = t23 ^ ((t23 ^ t14) & x1);
+    long t46 = x2 | ~x4;
+    long t47 = t46 ^ ((t46 ^ t27) & x1);
+    long t48 = t45 ^ ((t45 ^ t47) & x5);
+    long t49 = t44 ^ ((t44 ^ t48) & x3);
+    long t50 = t41 ^ ((t41 ^ t49) & x0);
+    long t51 = t27 ^ ((t27 ^ t46) & x1);
+    long t52 = x2 ^ ((x2 ^ t0) & x1);
+    long t53 = t51 ^ ((t51 ^ t52) & x5);
+    long t54 = t33 ^ ((t33 ^ t53) & x3);
+    long t55 = t19 ^ ((t19 ^ t46) & x1);
+    long t56 = t55 ^ ((t55 ^ t21) & x5);
+    long t57 = t3 ^ ((t3 ^ t7) & x1);
+    long t58 = t57 ^ ((t57 ^ t8) & x5);
+    long t59 = t56 ^ ((t56 ^ t58) & x3);
+    long t60 = t54 ^ ((t54 ^ t59) & x0);
+    out[off] = t18;
+    out[off + 1] = t36;
+    out[off + 2] = t50;
+    out[off + 3] = t60;
+  }
+
+  /**
+   * S7, decision over x0, x1, x5, x3 with the functions of x2 and x4 at the leaves
+   */
+  static void s7(long x0, long x1, long x2, long x3, long x4, long x5, long[] out, int off) {
+    long t0 = x2 ^ x4;
+    long t1 = x2 | x4;
+    long t2 = t0 ^ ((t0 ^ t1) & x3);
+    long t3 = ~(x2 ^ x4);
+    long t4 = t2 ^ ((t2 ^ t3) & x5);
+    long t5 = ~(x2 | x4);
+    long t6 = x4 ^ ((x4 ^ t5) & x3);
+    long t7 = t3 ^ ((t3 ^ t0) & x3);
+    long t8 = t6 ^ ((t6 ^ t7) & x5);
+    long t9 = t4 ^ ((t4 ^ t8) & x1);
+    long t10 = x2 & ~x4;
+    long t11 = ~x2 | x4;
+    long t12 = t10 ^ ((t10 ^ t11) & x3);
+    long t13 = ~x2 & x4;
+    long t14 = ~(x2 & x4);
+    long t15 = t13 ^ ((t13 ^ t14) & x3);
+    long t16 = t12 ^ ((t12 ^ t15) & x5);
+    long t17 = ~x2;
+    long t18 = t17 ^ ((t17 ^ t0) & x3);
+    long t19 = ~x4;
+    long t20 = t19 ^ ((t19 ^ x4) & x3);
+    long t21 = t18 ^ ((t18 ^ t20) & x5);
+    long t22 = t16 ^ ((t16 ^ t21) & x1);
+    long t23 = t9 ^ ((t9 ^ t22) & x0);
+    long t24 = t19 ^ ((t19 ^ t13) & x3);
+    long t25 = t20 ^ ((t20 ^ t24) & x5);
+    long t26 = t3 ^ ((t3 ^ t11) & x3);
+    long t27 = t0 ^ ((t0 ^ t26) & x5);
+    long t28 = t25 ^ ((t25 ^ t27) & x1);
+    long t29 = t0 ^ ((t0 ^ x4) & x3);
+    long t30 = t6 ^ ((t6 ^ t29) & x5);
+    long t31 = t4 ^ ((t4 ^ t30) & x1);
+    long t32 = t28 ^ ((t28 ^ t31) & x0);
+    long t33 = t0 ^ ((t0 ^ t17) & x3);
+    long t34 = 0L;
+    long t35 = t11 & x3;
+    long t36 = t33 ^ ((t33 ^ t35) & x5);
+    long t37 = -1L;
+    long t38 = x2 & x4;
+    long t39 = t38 | ~x3;
+    long t40 = t7 ^ ((t7 ^ t39) & x5);
+    long t41 = t36 ^ ((t36 ^ t40) & x1);
+    long t42 = x2 | ~x4;
+    long t43 = t38 ^ ((t38 ^ t42) & x3);
+    long t44 = t17 ^ ((t17 ^ x2) & x3);
+    long t45 = t43 ^ ((t43 ^ t44) & x5);
+    long t46 = t17 ^ ((t17 ^ t3) & x3);
+    long t47 = x2 ^ ((x2 ^ t0) & x3);
+    long t48 = t46 ^ ((t46 ^ t47) & x5);
+    long t49 = t45 ^ ((t45 ^ t48) & x1);
+    long t50 = t41 ^ ((t41 ^ t49) & x0);
+    long t51 = t0 ^ ((t0 ^ t38) & x3);
+    long t52 = t3 ^ ((t3 ^ t14) & x3);
+    long t53 = t51 ^ ((t51 ^ t52) & x5);
+    long t54 = t19 ^ ((t19 ^ t11) & x3);
+    long t55 = t54 ^ ((t54 ^ t6) & x5);
+    long t56 = t53 ^ ((t53 ^ t55) & x1);
+    long t57 = t0 ^ ((t0 ^ t3) & x3);
+    long t58 = t52 ^ ((t52 ^ t57) & x5);
+    long t59 = x4 ^ ((x4 ^ t10) & x3);
+    long t60 = t59 ^ ((t59 ^ t18) & x5);
+    long t61 = t58 ^ ((t58 ^ t60) & x1);
+    long t62 = t56 ^ ((t56 ^ t61) & x0);
+    out[off] = t23;
+    out[off + 1] = t32;
+    out[off + 2] = t50;
+    out[off + 3] = t62;
+  }
+
+  /**
+   * S8, decision over x0, x4, x5, x2 with the functions of x1 and x3 at the leaves
+   */
+  static void s8(long x0, long x1, long x2, long x3, long x4, long x5, long[] out, int off) {
+    long t0 = ~(x1 & x3);
+    long t1 = t0 ^ ((t0 ^ x3) & x2);
+    long t2 = x1 ^ x3;
+    long t3 = ~(x1 ^ x3);
+    long t4 = t2 ^ ((t2 ^ t3) & x2);
+    long t5 = t1 ^ ((t1 ^ t4) & x5);
+    long t6 = ~(x1 | x3);
+    long t7 = x1 ^ ((x1 ^ t6) & x2);
+    long t8 = ~x1 | x3;
+    long t9 = x1 & ~x3;
+    long t10 = t8 ^ ((t8 ^ t9) & x2);
+    long t11 = t7 ^ ((t7 ^ t10) & x5);
+    long t12 = t5 ^ ((t5 ^ t11) & x4);
+    long t13 = x1 & x3;
+    long t14 = t13 ^ ((t13 ^ t0) & x2);
+    long t15 = x1 | x3;
+    long t16 = ~x1 & x3;
+    long t17 = t15 ^ ((t15 ^ t16) & x2);
+    long t18 = t14 ^ ((t14 ^ t17) & x5);
+    long t19 = t9 ^ ((t9 ^ t8) & x2);
+    long t20 = t3 ^ ((t3 ^ t19) & x5);
+    long t21 = t18 ^ ((t18 ^ t20) & x4);
+    long t22 = t12 ^ ((t12 ^ t21) & x0);
+    long t23 = x1 | ~x3;
+    long t24 = t6 ^ ((t6 ^ t23) & x2);
+    long t25 = t24 ^ ((t24 ^ t17) & x5);
+    long t26 = x3 ^ ((x3 ^ t3) & x2);
+    long t27 = ~x3;
+    long t28 = t27 ^ ((t27 ^ t2) & x2);
+    long t29 = t26 ^ ((t26 ^ t28) & x5);
+    long t30 = t25 ^ ((t25 ^ t29) & x4);
+    long t31 = ~x1;
+    long t32 = t31 ^ ((t31 ^ t15) & x2);
+    long t33 = t32 ^ ((t32 ^ t4) & x5);
+    long t34 = t7 ^ ((t7 ^ t2) & x5);
+    long t35 = t33 ^ ((t33 ^ t34) & x4);
+    long t36 = t30 ^ ((t30 ^ t35) & x0);
+    long t37 = x1 ^ ((x1 ^ t31) & x2);
+    long t38 = t13 ^ ((t13 ^ t31) & x2);
+    long t39 = t37 ^ ((t37 ^ t38) & x5);
+    long t40 = t3 ^ ((t3 ^ t23) & x2);
+    long t41 = t3 ^ ((t3 ^ t40) & x5);
+    long t42 = t39 ^ ((t39 ^ t41) & x4);
+    long t43 = t3 ^ ((t3 ^ t2) & x2);
+    long t44 = t0 ^ ((t0 ^ x1) & x2);
+    long t45 = t43 ^ ((t43 ^ t44) & x5);
+    long t46 = t16 ^ ((t16 ^ t3) & x2);
+    long t47 = t28 ^ ((t28 ^ t46) & x5);
+    long t48 = t45 ^ ((t45 ^ t47) & x4);
+    long t49 = t42 ^ ((t42 ^ t48) & x0);
+    long t50 = t31 ^ ((t31 ^ x3) & x2);
+    long t51 = t43 ^ ((t43 ^ t50) & x5);
+    long t52 = t23 ^ ((t23 ^ t6) & x2);
+    long t53 = t19 ^ ((t19 ^ t52) & x5);
+    long t54 = t51 ^ ((t51 ^ t53) & x4);
+    long t55 = x1 ^ ((x1 ^ t9) & x2);
+    long t56 = t24 ^ ((t24 ^ t55) & x5);
+    long t57 = t10 ^ ((t10 ^ t32) & x5);
+    long t58 = t56 ^ ((t56 ^ t57) & x4);
+    long t59 = t54 ^ ((t54 ^ t58) & x0);
+    out[off] = t22;
+    out[off + 1] = t36;
+    out[off + 2] = t49;
+    out[off + 3] = t59;
+  }
+}
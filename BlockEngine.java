@@ -0,0 +1,126 @@
+/**
+ * @author Canberk Aslan
+ * Keyed block cipher engine. The key schedule is set up once when the engine
+ * is created, after that every 64 bit block is processed without creating a
+ * new key or initializing the cipher again.
+ */
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.NoSuchPaddingException;
+
+public interface BlockEngine {
+  int BLOCK_SIZE = 8;
+  /* system property selecting the engine, jce for the provider, java for DesEngine or bitslice for BitslicedDes */
+  String BACKEND_PROPERTY = "des.backend";
+  /* big endian long view of byte arrays, first byte of a block is the most significant */
+  VarHandle BLOCK_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+  /**
+   * Encrypts/decrypts one block from in starting at inOff into out starting at
+   * outOff. in and out can be the same array.
+   *
+   * @param in
+   * @param inOff
+   * @param out
+   * @param outOff
+   */
+  void processBlock(byte[] in, int inOff, byte[] out, int outOff);
+
+  /**
+   * Encrypts/decrypts one block kept in a long, first byte of the block is the
+   * most significant byte
+   *
+   * @param block
+   * @return encrypted/decrypted block
+   */
+  long processBlock(long block);
+
+  /**
+   * Encrypts/decrypts consecutive independent blocks, engines that are faster
+   * on many blocks at once override it. in and out can be the same array at
+   * the same offset.
+   *
+   * @param in
+   * @param inOff
+   * @param out
+   * @param outOff
+   * @param blocks number of blocks
+   */
+  default void processBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+    for (int i = 0; i < blocks * BLOCK_SIZE; i += BLOCK_SIZE)
+      processBlock(in, inOff + i, out, outOff + i);
+  }
+
+  /**
+   * Clears the key schedule held by the engine, the engine should not be used
+   * afterwards
+   */
+  void destroy();
+
+  /**
+   * Loads the block at off as a big endian long
+   */
+  static long readBlock(byte[] in, int off) {
+    return (long) BLOCK_VIEW.get(in, off);
+  }
+
+  /**
+   * Stores the block as big endian bytes at off
+   */
+  static void writeBlock(long block, byte[] out, int off) {
+    BLOCK_VIEW.set(out, off, block);
+  }
+
+  /**
+   * Names accepted by the des.backend property and the -backend option
+   */
+  static boolean isBackend(String backend) {
+    return backend.equals("jce") || backend.equals("java") || backend.equals("bitslice");
+  }
+
+  /**
+   * Creates an engine for the given algorithm, key and direction. The JCE
+   * provider is used unless the des.backend property is set to java or
+   * bitslice.
+   *
+   * @param algorithm DES or TripleDES
+   * @param key
+   * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+   * @return initialized engine
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   */
+  static BlockEngine create(String algorithm, byte[] key, int mode)
+      throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+    String backend = backend();
+    if (backend.equals("java"))
+      return new DesEngine(algorithm, key, mode);
+    if (backend.equals("bitslice"))
+      return new BitslicedDes(algorithm, key, mode);
+
+    return new JceBlockEngine(algorithm, key, mode);
+  }
+
+  /**
+   * Backend selected by the system property, jce when it is not set
+   */
+  static String backend() {
+    return System.getProperty(BACKEND_PROPERTY, "jce");
+  }
+
+  /**
+   * Backend an engine was created for, the name used by the system property
+   */
+  static String backendOf(BlockEngine engine) {
+    if (engine instanceof BitslicedDes)
+      return "bitslice";
+
+    return engine instanceof DesEngine ? "java" : "jce";
+  }
+}
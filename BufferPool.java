@@ -0,0 +1,45 @@
+/**
+ * @author Canberk Aslan
+ * Pool of direct byte buffers of a single size. Direct buffers are expensive to
+ * allocate and are only freed by the garbage collector, so released buffers are
+ * kept and handed out again instead of allocating new ones.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+public class BufferPool {
+  private final int bufferSize;
+  private final int maxIdle;
+  private final ArrayDeque<ByteBuffer> idle = new ArrayDeque<>();
+
+  /**
+   * @param bufferSize capacity of every buffer
+   * @param maxIdle buffers over this count are dropped when they are released
+   */
+  public BufferPool(int bufferSize, int maxIdle) {
+    this.bufferSize = bufferSize;
+    this.maxIdle = maxIdle;
+  }
+
+  /**
+   * Returns a cleared buffer, a new one is allocated if none is idle
+   */
+  public synchronized ByteBuffer acquire() {
+    ByteBuffer buffer = idle.poll();
+    if (buffer == null)
+      return ByteBuffer.allocateDirect(bufferSize);
+
+    buffer.clear();
+    return buffer;
+  }
+
+  public synchronized void release(ByteBuffer buffer) {
+    if (buffer.capacity() == bufferSize && idle.size() < maxIdle)
+      idle.push(buffer);
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+}
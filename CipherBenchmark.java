@@ -0,0 +1,176 @@
+/**
+ * @author Canberk Aslan
+ * Benchmark harness for the block cipher modes. Every mode is run for DES and
+ * TripleDES, encryption and decryption, over a range of message sizes. After a
+ * warmup phase each case is measured for a fixed time and the throughput,
+ * latency percentiles and the bytes allocated per operation are reported.
+ *
+ * Usage: java [-Ddes.backend=java] CipherBenchmark [-s 64,1K,1M] [-a DES,TripleDES] [-m CBC,CTR] [-t seconds]
+ */
+
+import java.lang.management.ManagementFactory;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+public class CipherBenchmark {
+  public static final String[] DEFAULT_SIZES = { "64", "1K", "64K", "1M", "64M", "1G" };
+  public static final String[] DEFAULT_ALGORITHMS = { "DES", "TripleDES" };
+  public static final String[] DEFAULT_MODES = { "ECB", "CBC", "CFB", "OFB", "CTR" };
+
+  private static final byte[] KEY = "benchmarkkeyforthecipher".getBytes(FileIO.ISO_8859_1);
+  private static final byte[] IV = "initvect".getBytes(FileIO.ISO_8859_1);
+  private static final byte[] NONCE = "nonc".getBytes(FileIO.ISO_8859_1);
+
+  /* a case is repeated at least this many times even when it is slower than the time budget */
+  private static final int MIN_ITERATIONS = 3;
+  private static final int MAX_SAMPLES = 1_000_000;
+
+  /**
+   * Parses the options and runs every combination of algorithm, mode, direction
+   * and size
+   *
+   * @param args
+   * @throws GeneralSecurityException
+   */
+  public static void main(String[] args) throws GeneralSecurityException {
+    String[] sizes = DEFAULT_SIZES, algorithms = DEFAULT_ALGORITHMS, modes = DEFAULT_MODES;
+    double seconds = 2;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (args[i].equals("-s"))
+        sizes = args[i + 1].split(",");
+      else if (args[i].equals("-a"))
+        algorithms = args[i + 1].split(",");
+      else if (args[i].equals("-m"))
+        modes = args[i + 1].split(",");
+      else if (args[i].equals("-t"))
+        seconds = Double.parseDouble(args[i + 1]);
+      else
+        throw new Error("Unknown benchmark option " + args[i]);
+    }
+
+    System.out.println(String.format(Locale.ROOT, "%-10s %-4s %-4s %10s %10s %12s %12s %12s %12s %14s",
+        "algorithm", "mode", "dir", "size", "ops", "MB/s", "p50 us", "p99 us", "p99.9 us", "alloc B/op"));
+
+    for (String size : sizes) {
+      long length = FileCipher.parseSize(size);
+      /* the message, the padded copy and the result have to fit in the heap */
+      if (length * 3 > Runtime.getRuntime().maxMemory()) {
+        System.out.println("skipping " + size + ", not enough heap (run with a larger -Xmx)");
+        continue;
+      }
+
+      byte[] message = new byte[(int) length];
+      new Random(length).nextBytes(message);
+
+      for (String algorithm : algorithms)
+        for (String mode : modes)
+          for (String type : new String[] { "enc", "dec" })
+            report(algorithm, mode, type, size, message, measure(algorithm, mode, type, message, seconds));
+    }
+  }
+
+  /**
+   * Warms up the case for a third of the time budget, then measures every
+   * operation separately
+   *
+   * @return measured samples in nanoseconds, last element is allocated bytes per
+   *         operation
+   * @throws GeneralSecurityException
+   */
+  public static long[] measure(String algorithm, String mode, String type, byte[] message, double seconds)
+      throws GeneralSecurityException {
+    long budget = (long) (seconds * 1e9);
+    long warmupEnd = System.nanoTime() + budget / 3;
+    do {
+      runOnce(algorithm, mode, type, message);
+    } while (System.nanoTime() < warmupEnd);
+
+    long[] samples = new long[1024];
+    int count = 0;
+    long allocatedBefore = allocatedBytes(), end = System.nanoTime() + budget;
+
+    while ((count < MIN_ITERATIONS || System.nanoTime() < end) && count < MAX_SAMPLES) {
+      long start = System.nanoTime();
+      runOnce(algorithm, mode, type, message);
+      if (count == samples.length)
+        samples = Arrays.copyOf(samples, count * 2);
+      samples[count++] = System.nanoTime() - start;
+    }
+
+    long allocated = allocatedBytes() - allocatedBefore;
+    samples = Arrays.copyOf(samples, count + 1);
+    samples[count] = allocated / count;
+    return samples;
+  }
+
+  /**
+   * Runs a single operation the way CipherController does, constructing the
+   * mode is part of the measured operation
+   *
+   * @return encrypted/decrypted message
+   * @throws GeneralSecurityException
+   */
+  public static byte[] runOnce(String algorithm, String mode, String type, byte[] message)
+      throws GeneralSecurityException {
+    boolean encrypt = type.equals("enc");
+
+    if (mode.equals("CBC")) {
+      CipherCBC cipherCBC = new CipherCBC(message, KEY, IV, algorithm);
+      return encrypt ? cipherCBC.encrypt() : cipherCBC.decrypt();
+    }
+
+    if (mode.equals("CFB")) {
+      CipherCFB cipherCFB = new CipherCFB(message, KEY, IV, algorithm);
+      return encrypt ? cipherCFB.encrypt() : cipherCFB.decrypt();
+    }
+
+    if (mode.equals("CTR")) {
+      CipherCTR cipherCTR = new CipherCTR(message, KEY, NONCE, algorithm);
+      return encrypt ? cipherCTR.encrypt() : cipherCTR.decrypt();
+    }
+
+    if (mode.equals("OFB")) {
+      CipherOFB cipherOFB = new CipherOFB(message, KEY, IV, algorithm);
+      return encrypt ? cipherOFB.encrypt() : cipherOFB.decrypt();
+    }
+
+    CipherECB cipherECB = new CipherECB(message, KEY, algorithm);
+    return encrypt ? cipherECB.encrypt() : cipherECB.decrypt();
+  }
+
+  private static void report(String algorithm, String mode, String type, String size, byte[] message,
+      long[] samples) {
+    int count = samples.length - 1;
+    long allocated = samples[count];
+    long[] sorted = Arrays.copyOf(samples, count);
+    Arrays.sort(sorted);
+
+    long total = 0;
+    for (long sample : sorted)
+      total += sample;
+
+    double megabytesPerSecond = (double) message.length * count / (1 << 20) / (total / 1e9);
+    System.out.println(String.format(Locale.ROOT, "%-10s %-4s %-4s %10s %10d %12.2f %12.2f %12.2f %12.2f %14d",
+        algorithm, mode, type, size, count, megabytesPerSecond, percentile(sorted, 0.50) / 1e3,
+        percentile(sorted, 0.99) / 1e3, percentile(sorted, 0.999) / 1e3, allocated));
+  }
+
+  private static long percentile(long[] sorted, double p) {
+    return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+  }
+
+  /**
+   * Bytes allocated by the current thread so far, allocation is reported as 0
+   * if the JVM can not tell
+   */
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean)
+      return ((com.sun.management.ThreadMXBean) bean).getCurrentThreadAllocatedBytes();
+
+    return 0;
+  }
+}
@@ -1,23 +1,27 @@
-
 /**
  * @author Canberk Aslan
  * CBC operation for DES Cipher
  */
 
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 
 public class CipherCBC extends SimpleCipher {
-  public byte[][] message;
+  public byte[] message;
   public byte[] key;
   public byte[] iv;
+  /* previous cipher text block for update/doFinal */
+  private long previous;
 
   /**
-   * Responsible for creating dividing the block to 64 bit chunks and normalizing
+   * Responsible for padding the message to a multiple of 64 bits and normalizing
    * the key to 64 or 192 bits, iv to 64 bits
    * 
    * @param message
@@ -30,15 +34,29 @@ public class CipherCBC extends SimpleCipher {
   public CipherCBC(byte[] message, byte[] key, byte[] iv, String algorithm)
       throws NoSuchAlgorithmException, NoSuchPaddingException {
     super(algorithm);
-    this.message = distributeMessage(message);
+    this.message = padMessage(message);
     this.iv = normalizeToNBytes(iv, DEFAULT_SIZE);
-    this.key = normalizeToNBytes(key, algorithm == "TripleDES" ? DEFAULT_SIZE * 3 : DEFAULT_SIZE);
+    this.key = normalizeToNBytes(key, algorithm.equals("TripleDES") ? DEFAULT_SIZE * 3 : DEFAULT_SIZE);
+  }
+
+  /**
+   * Cipher without a message for incremental use with init, update and doFinal
+   *
+   * @param key
+   * @param iv
+   * @param algorithm
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   */
+  public CipherCBC(byte[] key, byte[] iv, String algorithm)
+      throws NoSuchAlgorithmException, NoSuchPaddingException {
+    this(new byte[0], key, iv, algorithm);
   }
 
   /**
    * Uses the iv for initializing the encryption process then uses ciphertext xor
    * plaintext
-   * Joins the blocks and constructs a whole message at the end
+   * Blocks are written to their offsets in the returned message
    * 
    * @return constructed message
    * @throws InvalidKeyException
@@ -47,30 +65,24 @@ public class CipherCBC extends SimpleCipher {
    */
   public byte[] encrypt() throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
     int length = message.length;
-    byte[][] ret = new byte[length][DEFAULT_SIZE];
-
-    for (int i = 0; i < length; i++) {
-      byte[] cipherInput;
+    byte[] ret = new byte[length];
+    long previous = readBlock(iv, 0);
+    BlockEngine engine = engine(key, Cipher.ENCRYPT_MODE);
 
+    for (int i = 0; i < length; i += DEFAULT_SIZE) {
       /* First xor message with iv, then xor message with previous cipher text */
-      if (i == 0)
-        cipherInput = this.xorArrays(message[i], iv, DEFAULT_SIZE);
-      else
-        cipherInput = this.xorArrays(message[i], ret[i - 1], DEFAULT_SIZE);
-
-      byte[] cipherText = encrypt(cipherInput, key);
-      for (int j = 0; j < DEFAULT_SIZE; j++)
-        ret[i][j] = cipherText[j];
+      previous = engine.processBlock(readBlock(message, i) ^ previous);
+      writeBlock(previous, ret, i);
     }
 
-    return joinMessage(ret);
+    return ret;
   }
 
   /**
    * Uses the iv for initializing the decryption process then uses ciphertext from
    * previous step xor
    * decrypted ciphertext
-   * Joins the blocks and constructs a whole message at the end
+   * Blocks are written to their offsets in the returned message
    * 
    * @return constructed message
    * @throws InvalidKeyException
@@ -79,25 +91,154 @@ public class CipherCBC extends SimpleCipher {
    */
   public byte[] decrypt() throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
     int length = message.length;
-    byte[][] ret = new byte[length][DEFAULT_SIZE];
+    byte[] ret = new byte[length];
+    long previous = readBlock(iv, 0);
+    BlockEngine engine = engine(key, Cipher.DECRYPT_MODE);
 
-    for (int i = 0; i < length; i++) {
-      byte[] plaintext;
-      byte[] middlewareText = decrypt(message[i], key);
+    for (int i = 0; i < length; i += DEFAULT_SIZE) {
+      long cipherText = readBlock(message, i);
 
       /*
        * First xor decrypted message with iv then use ciphertext from previous step
        * with decrypted message
        */
-      if (i == 0)
-        plaintext = this.xorArrays(middlewareText, iv, DEFAULT_SIZE);
-      else
-        plaintext = this.xorArrays(middlewareText, message[i - 1], DEFAULT_SIZE);
+      writeBlock(engine.processBlock(cipherText) ^ previous, ret, i);
+      previous = cipherText;
+    }
+
+    return ret;
+  }
+
+  /**
+   * Decryption of a block only needs the current and the previous ciphertext
+   * block, so the blocks are divided into segments which are decrypted at the
+   * same time. Each segment reads the last ciphertext block of the segment
+   * before it. The result is identical to decrypt.
+   * 
+   * @param pool
+   * @return constructed message
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   */
+  public byte[] decryptParallel(ForkJoinPool pool) throws NoSuchAlgorithmException, NoSuchPaddingException,
+      InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    int length = message.length;
+    byte[] ret = new byte[length];
+
+    processParallel(pool, length / DEFAULT_SIZE, key, Cipher.DECRYPT_MODE, (worker, from, to) -> {
+      /* the block before the segment is read again, first segment starts with iv */
+      long previous = from == 0 ? readBlock(iv, 0) : readBlock(message, (from - 1) * DEFAULT_SIZE);
 
-      for (int j = 0; j < DEFAULT_SIZE; j++)
-        ret[i][j] = plaintext[j];
+      for (int i = from * DEFAULT_SIZE; i < to * DEFAULT_SIZE; i += DEFAULT_SIZE) {
+        long cipherText = readBlock(message, i);
+        writeBlock(worker.processBlock(cipherText) ^ previous, ret, i);
+        previous = cipherText;
+      }
+    });
+
+    return ret;
+  }
+
+  public byte[] decryptParallel() throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+      IllegalBlockSizeException, BadPaddingException {
+    return decryptParallel(ForkJoinPool.commonPool());
+  }
+
+  @Override
+  protected void resetChain() {
+    previous = readBlock(iv, 0);
+  }
+
+  @Override
+  protected void updateBlocks(byte[] in, int inOff, int length, byte[] out, int outOff)
+      throws InvalidKeyException {
+    BlockEngine engine = engine(key, opmode);
+
+    if (opmode == Cipher.ENCRYPT_MODE) {
+      for (int i = 0; i < length; i += DEFAULT_SIZE) {
+        previous = engine.processBlock(readBlock(in, inOff + i) ^ previous);
+        writeBlock(previous, out, outOff + i);
+      }
+      return;
+    }
+
+    for (int i = 0; i < length; i += DEFAULT_SIZE) {
+      long cipherText = readBlock(in, inOff + i);
+      writeBlock(engine.processBlock(cipherText) ^ previous, out, outOff + i);
+      previous = cipherText;
+    }
+  }
+
+  @Override
+  protected void updateBlocks(ByteBuffer in, int inOff, int length, ByteBuffer out, int outOff)
+      throws InvalidKeyException {
+    BlockEngine engine = engine(key, opmode);
+
+    if (opmode == Cipher.ENCRYPT_MODE) {
+      for (int i = 0; i < length; i += DEFAULT_SIZE) {
+        previous = engine.processBlock(readBlock(in, inOff + i) ^ previous);
+        writeBlock(previous, out, outOff + i);
+      }
+      return;
     }
 
-    return joinMessage(ret);
+    for (int i = 0; i < length; i += DEFAULT_SIZE) {
+      long cipherText = readBlock(in, inOff + i);
+      writeBlock(engine.processBlock(cipherText) ^ previous, out, outOff + i);
+      previous = cipherText;
+    }
+  }
+
+  /**
+   * Ciphertext stealing (CS3, the ordering of SunJCE DES/CTS/NoPadding). in
+   * holds the last full block and length - 8 bytes of the last block, which is
+   * complete when the message is aligned. While encrypting, the last block is
+   * padded with zeros and chained with the full block, its cipher text is
+   * written first and followed by the head of the full block's cipher text, so
+   * the last two blocks of an aligned message are swapped. Decryption gets the
+   * missing tail of that block back from the decrypted stolen block. A single
+   * block message is plain CBC.
+   *
+   * @return number of bytes written to out
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException if the message is shorter than a block
+   */
+  @Override
+  protected int finishStealing(byte[] in, int length, byte[] out, int outOff)
+      throws InvalidKeyException, IllegalBlockSizeException {
+    if (length < DEFAULT_SIZE)
+      throw new IllegalBlockSizeException("Ciphertext stealing needs at least " + DEFAULT_SIZE + " bytes");
+
+    if (length == DEFAULT_SIZE) {
+      updateBlocks(in, 0, DEFAULT_SIZE, out, outOff);
+      return DEFAULT_SIZE;
+    }
+
+    int tail = length - DEFAULT_SIZE;
+    byte[] block = new byte[DEFAULT_SIZE];
+    System.arraycopy(in, DEFAULT_SIZE, block, 0, tail);
+    BlockEngine engine = engine(key, opmode);
+
+    if (opmode == Cipher.ENCRYPT_MODE) {
+      long full = engine.processBlock(readBlock(in, 0) ^ previous);
+      writeBlock(engine.processBlock(readBlock(block, 0) ^ full), out, outOff);
+      writeBlock(full, block, 0);
+      System.arraycopy(block, 0, out, outOff + DEFAULT_SIZE, tail);
+      return length;
+    }
+
+    /* the stolen block decrypts to the zero padded last block xor the full cipher block */
+    long stolen = engine.processBlock(readBlock(in, 0));
+    writeBlock(stolen, block, 0);
+    System.arraycopy(in, DEFAULT_SIZE, block, 0, tail);
+    long full = readBlock(block, 0);
+
+    writeBlock(engine.processBlock(full) ^ previous, out, outOff);
+    writeBlock(stolen ^ full, block, 0);
+    System.arraycopy(block, 0, out, outOff + DEFAULT_SIZE, tail);
+    return length;
   }
 }
@@ -4,20 +4,25 @@
  * CFB operation for DES Cipher
  */
 
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 
 public class CipherCFB extends SimpleCipher {
-  public byte[][] message;
+  public byte[] message;
   public byte[] key;
   public byte[] iv;
+  /* feedback block for update/doFinal */
+  private long previous;
 
   /**
-   * Responsible for creating dividing the block to 64 bit chunks and normalizing
+   * Responsible for padding the message to a multiple of 64 bits and normalizing
    * the key to 64 or 192 bits, iv to 64 bits
    * 
    * @param message
@@ -30,16 +35,30 @@ public class CipherCFB extends SimpleCipher {
   public CipherCFB(byte[] message, byte[] key, byte[] iv, String algorithm)
       throws NoSuchAlgorithmException, NoSuchPaddingException {
     super(algorithm);
-    this.message = distributeMessage(message);
+    this.message = padMessage(message);
     this.iv = normalizeToNBytes(iv, DEFAULT_SIZE);
-    this.key = normalizeToNBytes(key, algorithm == "TripleDES" ? DEFAULT_SIZE * 3 : DEFAULT_SIZE);
+    this.key = normalizeToNBytes(key, algorithm.equals("TripleDES") ? DEFAULT_SIZE * 3 : DEFAULT_SIZE);
+  }
+
+  /**
+   * Cipher without a message for incremental use with init, update and doFinal
+   *
+   * @param key
+   * @param iv
+   * @param algorithm
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   */
+  public CipherCFB(byte[] key, byte[] iv, String algorithm)
+      throws NoSuchAlgorithmException, NoSuchPaddingException {
+    this(new byte[0], key, iv, algorithm);
   }
 
   /**
    * First use iv to encrypt, then xor it with plaintext.
    * For the next steps use previous cipher text for encryption and xor with
    * plaintext after encryption
-   * Joins the blocks and constructs a whole message at the end
+   * Blocks are written to their offsets in the returned message
    * 
    * @return constructed message
    * @throws InvalidKeyException
@@ -48,25 +67,24 @@ public class CipherCFB extends SimpleCipher {
    */
   public byte[] encrypt() throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
     int length = message.length;
-    byte[][] ret = new byte[length][DEFAULT_SIZE];
+    byte[] ret = new byte[length];
+    long previous = readBlock(iv, 0);
+    BlockEngine engine = engine(key, Cipher.ENCRYPT_MODE);
 
-    for (int i = 0; i < length; i++) {
+    for (int i = 0; i < length; i += DEFAULT_SIZE) {
       /* if first step use iv if not use previous cipher text */
-      byte[] middlewareText = encrypt(i == 0 ? iv : ret[i - 1], key);
-      byte[] cipherText = this.xorArrays(message[i], middlewareText, DEFAULT_SIZE);
-
-      for (int j = 0; j < DEFAULT_SIZE; j++)
-        ret[i][j] = cipherText[j];
+      previous = readBlock(message, i) ^ engine.processBlock(previous);
+      writeBlock(previous, ret, i);
     }
 
-    return joinMessage(ret);
+    return ret;
   }
 
   /**
    * First use iv to decrypt, then xor it with ciphertext.
    * For the next steps use previous cipher text for decryption and xor with
    * current ciphertext after decryption
-   * Joins the blocks and constructs a whole message at the end
+   * Blocks are written to their offsets in the returned message
    * 
    * @return constructed message
    * @throws InvalidKeyException
@@ -75,17 +93,117 @@ public class CipherCFB extends SimpleCipher {
    */
   public byte[] decrypt() throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
     int length = message.length;
-    byte[][] ret = new byte[length][DEFAULT_SIZE];
+    byte[] ret = new byte[length];
+    long previous = readBlock(iv, 0);
+    BlockEngine engine = engine(key, Cipher.ENCRYPT_MODE);
 
-    for (int i = 0; i < length; i++) {
-      /* if first step use iv if not use previous cipher text */
-      byte[] middlewareText = encrypt(i == 0 ? iv : message[i - 1], key);
-      byte[] plainText = this.xorArrays(message[i], middlewareText, DEFAULT_SIZE);
+    /* if first step use iv if not use previous cipher text */
+    decryptBlocks(engine, previous, message, 0, length, ret, 0);
+
+    return ret;
+  }
+
+  /**
+   * Decryption of a block only needs the current and the previous ciphertext
+   * block, so the blocks are divided into segments which are decrypted at the
+   * same time. Each segment reads the last ciphertext block of the segment
+   * before it. The result is identical to decrypt.
+   *
+   * @param pool
+   * @return constructed message
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   */
+  public byte[] decryptParallel(ForkJoinPool pool) throws NoSuchAlgorithmException, NoSuchPaddingException,
+      InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    int length = message.length;
+    byte[] ret = new byte[length];
+
+    processParallel(pool, length / DEFAULT_SIZE, key, Cipher.ENCRYPT_MODE, (worker, from, to) -> {
+      /* the block before the segment is read again, first segment starts with iv */
+      long previous = from == 0 ? readBlock(iv, 0) : readBlock(message, (from - 1) * DEFAULT_SIZE);
+      int offset = from * DEFAULT_SIZE;
+      decryptBlocks(worker, previous, message, offset, (to - from) * DEFAULT_SIZE, ret, offset);
+    });
 
-      for (int j = 0; j < DEFAULT_SIZE; j++)
-        ret[i][j] = plainText[j];
+    return ret;
+  }
+
+  public byte[] decryptParallel() throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+      IllegalBlockSizeException, BadPaddingException {
+    return decryptParallel(ForkJoinPool.commonPool());
+  }
+
+  @Override
+  protected void resetChain() {
+    previous = readBlock(iv, 0);
+  }
+
+  @Override
+  protected void updateBlocks(byte[] in, int inOff, int length, byte[] out, int outOff)
+      throws InvalidKeyException {
+    BlockEngine engine = engine(key, Cipher.ENCRYPT_MODE);
+
+    /* feedback is always the cipher text, the output while encrypting and the input while decrypting */
+    if (opmode == Cipher.DECRYPT_MODE) {
+      previous = decryptBlocks(engine, previous, in, inOff, length, out, outOff);
+      return;
+    }
+
+    for (int i = 0; i < length; i += DEFAULT_SIZE) {
+      previous = readBlock(in, inOff + i) ^ engine.processBlock(previous);
+      writeBlock(previous, out, outOff + i);
+    }
+  }
+
+  @Override
+  protected void updateBlocks(ByteBuffer in, int inOff, int length, ByteBuffer out, int outOff)
+      throws InvalidKeyException {
+    BlockEngine engine = engine(key, Cipher.ENCRYPT_MODE);
+
+    for (int i = 0; i < length; i += DEFAULT_SIZE) {
+      long input = readBlock(in, inOff + i), output = input ^ engine.processBlock(previous);
+      writeBlock(output, out, outOff + i);
+      previous = opmode == Cipher.DECRYPT_MODE ? input : output;
+    }
+  }
+
+  /**
+   * While decrypting the cipher text is known in advance, so the keystream of a
+   * batch of blocks is computed first from the previous cipher blocks and xored
+   * with the whole batch in one pass of the XorKernel. in and out can be the
+   * same array.
+   *
+   * @return last cipher text block
+   */
+  private long decryptBlocks(BlockEngine engine, long previous, byte[] in, int inOff, int length, byte[] out,
+      int outOff) {
+    byte[] keystream = new byte[Math.min(length, KEYSTREAM_BATCH)];
+
+    for (int done = 0; done < length; done += keystream.length) {
+      int n = Math.min(keystream.length, length - done);
+      for (int j = 0; j < n; j += DEFAULT_SIZE) {
+        writeBlock(engine.processBlock(previous), keystream, j);
+        previous = readBlock(in, inOff + done + j);
+      }
+
+      XorKernel.get().xor(in, inOff + done, keystream, 0, out, outOff + done, n);
     }
 
-    return joinMessage(ret);
+    return previous;
+  }
+
+  @Override
+  protected int finishStealing(byte[] in, int length, byte[] out, int outOff)
+      throws InvalidKeyException, IllegalBlockSizeException {
+    return finishStream(in, length, out, outOff);
+  }
+
+  @Override
+  protected boolean isStreamMode() {
+    return true;
   }
 }
@@ -4,20 +4,38 @@
  * CTR operation for DES Cipher
  */
 
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 
 public class CipherCTR extends SimpleCipher {
-  public byte[][] message;
+  /*
+   * counter digits are base 128 since incrementCounter wraps on Byte.MAX_VALUE,
+   * the upper 32 bits of the counter block hold the nonce
+   */
+  protected static final long NONCE_MASK = 0xFFFFFFFF00000000L;
+  protected static final long COUNTER_CARRY = 0x80808080L;
+  protected static final long COUNTER_DIGITS = 0x7F7F7F7FL;
+  protected static final long COUNTER_MASK = (1L << 28) - 1;
+  /* the legacy counter wraps after this many blocks (2 GiB) and repeats its keystream */
+  public static final long LEGACY_BLOCKS = 1L << 28;
+
+  public byte[] message;
   public byte[] key;
   public byte[] ctr;
+  /* counter of the next block for update/doFinal */
+  private long counter;
+  /* 64 bit counter instead of the nonce and 28 bit legacy counter */
+  private boolean wide;
 
   /**
-   * Responsible for creating dividing the block to 64 bit chunks and normalizing
+   * Responsible for padding the message to a multiple of 64 bits and normalizing
    * the key to 64 or 192 bits, creating the ctr with 32 bits of normalized nonce
    * value and 32 bits of counter
    * 
@@ -32,8 +50,8 @@ public class CipherCTR extends SimpleCipher {
       throws NoSuchAlgorithmException, NoSuchPaddingException {
     super(algorithm);
     this.ctr = new byte[DEFAULT_SIZE];
-    this.message = distributeMessage(message);
-    this.key = normalizeToNBytes(key, algorithm == "TripleDES" ? DEFAULT_SIZE * 3 : DEFAULT_SIZE);
+    this.message = padMessage(message);
+    this.key = normalizeToNBytes(key, algorithm.equals("TripleDES") ? DEFAULT_SIZE * 3 : DEFAULT_SIZE);
 
     byte[] normalizedNonce = normalizeToNBytes(nonce, DEFAULT_SIZE / 2);
     for (int i = 0; i < DEFAULT_SIZE / 2; i++) {
@@ -42,6 +60,50 @@ public class CipherCTR extends SimpleCipher {
     }
   }
 
+  /**
+   * Cipher without a message for incremental use with init, update and doFinal
+   *
+   * @param key
+   * @param nonce
+   * @param algorithm
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   */
+  public CipherCTR(byte[] key, byte[] nonce, String algorithm)
+      throws NoSuchAlgorithmException, NoSuchPaddingException {
+    this(new byte[0], key, nonce, algorithm);
+  }
+
+  /**
+   * Cipher with a 64 bit counter for new ciphertexts. The counter block starts
+   * at E(iv) and every block adds one to the whole 64 bit block, so the
+   * keystream only repeats after 2^64 blocks and every iv starts at an
+   * unrelated point of the counter space. The nonce and counter layout of the
+   * constructors wraps after LEGACY_BLOCKS blocks and is kept to read old
+   * ciphertexts.
+   *
+   * @param key
+   * @param iv 8 bytes, normalized like the iv of the other modes
+   * @param algorithm
+   * @return cipher for incremental use and range reads
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   */
+  public static CipherCTR wide(byte[] key, byte[] iv, String algorithm)
+      throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+    CipherCTR cipherCTR = new CipherCTR(key, new byte[0], algorithm);
+    long start = cipherCTR.engine(cipherCTR.key, Cipher.ENCRYPT_MODE)
+        .processBlock(readBlock(cipherCTR.normalizeToNBytes(iv, BlockEngine.BLOCK_SIZE), 0));
+    writeBlock(start, cipherCTR.ctr, 0);
+    cipherCTR.wide = true;
+    return cipherCTR;
+  }
+
+  public boolean isWide() {
+    return wide;
+  }
+
   /* Encryption and decryption is basicly the same thing so use helper for both */
   public byte[] encrypt() throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
     return cryptHelper();
@@ -54,7 +116,8 @@ public class CipherCTR extends SimpleCipher {
   /**
    * Uses nonce for giving additional protection and also counter.
    * Xors each block after encryption/decryption with plaintext/ciphertext
-   * Joins the blocks and constructs a whole message at the end
+   * Blocks are written to their offsets in the returned message
+   * With an enabled keystream cache the encrypted counters come from the cache
    * 
    * @return constructed message
    * @throws InvalidKeyException
@@ -63,21 +126,196 @@ public class CipherCTR extends SimpleCipher {
    */
   public byte[] cryptHelper() throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
     int length = message.length;
-    byte[][] ret = new byte[length][DEFAULT_SIZE];
+    byte[] ret = new byte[length];
+    long counter = readBlock(ctr, 0);
+    BlockEngine engine = engine(key, Cipher.ENCRYPT_MODE);
+
+    if (keystreamCache.isEnabled()) {
+      keystreamCache.xor(KeystreamCache.Source.ctr(keystreamCache, algorithm, key, counter, wide, engine), message,
+          ret, length);
+      writeBlock(advance(counter, length / DEFAULT_SIZE), ctr, 0);
+      return ret;
+    }
+
+    /* use counter and nonce for encryption/decryption, then xor with plaintext/ciphertext */
+    counter = keystream(engine, counter, message, 0, length, ret, 0);
 
-    for (int i = 0; i < length; i++) {
-      /* use counter and nonce for encryption/decryption */
-      byte[] middlewareText = encrypt(ctr, key);
-      /* do xor operation with encrypted data and plaintext/ciphertext */
-      byte[] cipherText = this.xorArrays(middlewareText, message[i], DEFAULT_SIZE);
+    writeBlock(counter, ctr, 0);
+    return ret;
+  }
+
+  /**
+   * Splits the message into counter ranges and computes the ranges on the given
+   * pool. Every range computes its own start counter and uses its own cipher
+   * instance so the workers do not share any state.
+   * The result is identical to cryptHelper, the counter is advanced the same way.
+   *
+   * @param pool
+   * @return constructed message
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   */
+  public byte[] cryptParallel(ForkJoinPool pool) throws NoSuchAlgorithmException, NoSuchPaddingException,
+      InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    /* a cached keystream only needs the xor, which is not worth splitting */
+    if (keystreamCache.isEnabled())
+      return cryptHelper();
+
+    int length = message.length / DEFAULT_SIZE;
+    byte[] ret = new byte[message.length];
+    long start = readBlock(ctr, 0);
+
+    processParallel(pool, length, key, Cipher.ENCRYPT_MODE, (worker, from, to) -> {
+      int offset = from * DEFAULT_SIZE;
+      keystream(worker, advance(start, from), message, offset, (to - from) * DEFAULT_SIZE, ret, offset);
+    });
+
+    writeBlock(advance(start, length), ctr, 0);
+    return ret;
+  }
+
+  public byte[] cryptParallel() throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+      IllegalBlockSizeException, BadPaddingException {
+    return cryptParallel(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Encrypts/decrypts bytes that sit at an arbitrary byte position of the
+   * stream, position 0 is the block of the current counter. Only the blocks
+   * covering the range are computed, their counters are found with counterAt so
+   * the cost depends on the length of the range and not on its position.
+   * in and out can be the same array. With the legacy counter the range has to
+   * end before the counter wraps.
+   *
+   * @param position byte position of in[inOff] in the stream
+   * @param in
+   * @param inOff
+   * @param length
+   * @param out
+   * @param outOff
+   * @throws InvalidKeyException
+   */
+  public void cryptRange(long position, byte[] in, int inOff, int length, byte[] out, int outOff)
+      throws InvalidKeyException {
+    BlockEngine engine = engine(key, Cipher.ENCRYPT_MODE);
+    checkRange(position, length);
+    long counter = advance(readBlock(ctr, 0), position / DEFAULT_SIZE);
+    int skip = (int) (position % DEFAULT_SIZE);
 
-      for (int j = 0; j < DEFAULT_SIZE; j++)
-        ret[i][j] = cipherText[j];
+    for (int done = 0; done < length; skip = 0) {
+      long keystream = engine.processBlock(counter);
+      counter = next(counter);
 
-      incrementCounter();
+      /* whole blocks are xored at once, partial blocks at the edges byte by byte */
+      if (skip == 0 && length - done >= DEFAULT_SIZE) {
+        writeBlock(readBlock(in, inOff + done) ^ keystream, out, outOff + done);
+        done += DEFAULT_SIZE;
+        continue;
+      }
+
+      for (int j = skip; j < DEFAULT_SIZE && done < length; j++, done++)
+        out[outOff + done] = (byte) (in[inOff + done] ^ (keystream >>> (56 - 8 * j)));
     }
+  }
 
-    return joinMessage(ret);
+  /**
+   * The legacy counter gives the blocks LEGACY_BLOCKS apart the same keystream,
+   * a range reaching past the wrap would be decrypted with the keystream of the
+   * start of the stream
+   */
+  private void checkRange(long position, int length) {
+    if (wide || length == 0)
+      return;
+
+    long last = (position + length - 1) / DEFAULT_SIZE;
+    if (last >= LEGACY_BLOCKS - counterValue(readBlock(ctr, 0)))
+      throw new IllegalArgumentException("Legacy CTR counter wraps after " + LEGACY_BLOCKS
+          + " blocks (2 GiB), use CipherCTR.wide for larger streams");
+  }
+
+  /**
+   * Decrypts only the requested range of the message
+   *
+   * @param offset first byte of the range
+   * @param length number of bytes, the range is cut at the end of the message
+   * @return decrypted range
+   * @throws InvalidKeyException
+   */
+  public byte[] decryptRange(long offset, int length) throws InvalidKeyException {
+    if (offset < 0 || length < 0)
+      throw new IllegalArgumentException("Range should not be negative");
+
+    int available = (int) Math.max(0, Math.min(length, message.length - offset));
+    byte[] ret = new byte[available];
+    cryptRange(offset, message, (int) offset, available, ret, 0);
+    return ret;
+  }
+
+  /**
+   * Computes the counter for the given block directly instead of incrementing
+   * it block by block. Counter bytes are digits of a base 128 number so the
+   * result is the same as calling incrementCounter blocks times.
+   *
+   * @param blocks number of blocks after the current counter
+   * @return new counter array
+   */
+  public byte[] counterAt(long blocks) {
+    byte[] ret = new byte[DEFAULT_SIZE];
+    writeBlock(advance(readBlock(ctr, 0), blocks), ret, 0);
+    return ret;
+  }
+
+  /**
+   * Same as counterAt but on a counter kept in a long. The four base 128 digits
+   * are packed into a 28 bit number, the blocks are added and the digits are
+   * spread back into their bytes.
+   *
+   * @param counter
+   * @param blocks
+   * @return counter of the block
+   */
+  protected static long counterAt(long counter, long blocks) {
+    long value = (counterValue(counter) + blocks) & COUNTER_MASK;
+
+    return (counter & NONCE_MASK) | (value & 0x7F) | ((value << 1) & 0x7F00) | ((value << 2) & 0x7F0000)
+        | ((value << 3) & 0x7F000000);
+  }
+
+  /**
+   * The four base 128 digits of the counter as a 28 bit number
+   */
+  private static long counterValue(long counter) {
+    return (counter & 0x7F) | ((counter >>> 1) & 0x3F80) | ((counter >>> 2) & 0x1FC000)
+        | ((counter >>> 3) & 0xFE00000);
+  }
+
+  /**
+   * Increments the counter by one with long arithmetic. Setting the top bit of
+   * every digit makes the carry move over digits that were already 127, the
+   * mask then clears the top bits and drops the carry out of the counter.
+   *
+   * @param counter
+   * @return next counter
+   */
+  protected static long nextCounter(long counter) {
+    return (counter & NONCE_MASK) | (((counter | COUNTER_CARRY) + 1) & COUNTER_DIGITS);
+  }
+
+  /**
+   * Next counter in the layout of this cipher
+   */
+  private long next(long counter) {
+    return wide ? counter + 1 : nextCounter(counter);
+  }
+
+  /**
+   * Counter blocks after the given one in the layout of this cipher
+   */
+  private long advance(long counter, long blocks) {
+    return wide ? counter + blocks : counterAt(counter, blocks);
   }
 
   /**
@@ -86,14 +324,64 @@ public class CipherCTR extends SimpleCipher {
    * 32 bits in total
    */
   public void incrementCounter() {
-    for (int i = DEFAULT_SIZE - 1; i > (DEFAULT_SIZE / 2) - 1; i--) {
-      if (ctr[i] == Byte.MAX_VALUE) {
-        ctr[i] = (byte) 0;
-        continue;
+    writeBlock(next(readBlock(ctr, 0)), ctr, 0);
+  }
+
+  @Override
+  protected void resetChain() {
+    counter = readBlock(ctr, 0);
+  }
+
+  @Override
+  protected void updateBlocks(byte[] in, int inOff, int length, byte[] out, int outOff)
+      throws InvalidKeyException {
+    counter = keystream(engine(key, Cipher.ENCRYPT_MODE), counter, in, inOff, length, out, outOff);
+  }
+
+  @Override
+  protected void updateBlocks(ByteBuffer in, int inOff, int length, ByteBuffer out, int outOff)
+      throws InvalidKeyException {
+    BlockEngine engine = engine(key, Cipher.ENCRYPT_MODE);
+
+    for (int i = 0; i < length; i += DEFAULT_SIZE) {
+      writeBlock(readBlock(in, inOff + i) ^ engine.processBlock(counter), out, outOff + i);
+      counter = next(counter);
+    }
+  }
+
+  /**
+   * Writes the counters of a batch of blocks, encrypts them with a single
+   * processBlocks call into a keystream, then xors the whole batch with the
+   * input in one pass of the XorKernel. in and out can be the same array.
+   *
+   * @return counter of the block after the last one
+   */
+  private long keystream(BlockEngine engine, long counter, byte[] in, int inOff, int length, byte[] out,
+      int outOff) {
+    byte[] keystream = new byte[Math.min(length, KEYSTREAM_BATCH)];
+
+    for (int done = 0; done < length; done += keystream.length) {
+      int n = Math.min(keystream.length, length - done);
+      for (int j = 0; j < n; j += DEFAULT_SIZE) {
+        writeBlock(counter, keystream, j);
+        counter = next(counter);
       }
 
-      ctr[i]++;
-      break;
+      engine.processBlocks(keystream, 0, keystream, 0, n / DEFAULT_SIZE);
+      XorKernel.get().xor(in, inOff + done, keystream, 0, out, outOff + done, n);
     }
+
+    return counter;
+  }
+
+  @Override
+  protected int finishStealing(byte[] in, int length, byte[] out, int outOff)
+      throws InvalidKeyException, IllegalBlockSizeException {
+    return finishStream(in, length, out, outOff);
+  }
+
+  @Override
+  protected boolean isStreamMode() {
+    return true;
   }
 }
@@ -0,0 +1,437 @@
+/**
+ * @author Canberk Aslan
+ * Chunked container format. The file starts with a header naming everything
+ * needed for decryption except the key, the plaintext is split into chunks of a
+ * fixed size which are encrypted independently and an index of the chunk
+ * offsets closes the file, so every chunk can be found and decrypted on its own
+ * and chunks are encrypted/decrypted in parallel in every mode.
+ *
+ * Layout, numbers are big endian:
+ *   header  "DESC", version, algorithm, mode, padding (UTF strings),
+ *           iv (8 bytes), chunk size (int)
+ *   chunks  chunk i is chained from its own iv, E(iv xor i) for CBC, CFB and
+ *           OFB. CTR uses the 64 bit counter of CipherCTR.wide started at
+ *           E(iv) and continues it at block i * chunk size / 8, so the
+ *           keystream does not repeat within a container of any size.
+ *           Only the last chunk is padded. With ciphertext stealing a tail
+ *           shorter than a block is part of the chunk before it, so the
+ *           last chunk can be up to 7 bytes longer than the chunk size.
+ *   index   chunk count (int), offset of every chunk (long)
+ *   trailer index offset (long), plaintext length (long), "DIDX"
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+
+public class CipherContainer {
+  public static final int VERSION = 1;
+  public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+  public static final int BLOCK_SIZE = 8;
+  public static final int TRAILER_SIZE = 20;
+
+  private static final int MAGIC = 0x44455343; /* DESC */
+  private static final int INDEX_MAGIC = 0x44494458; /* DIDX */
+
+  /**
+   * Encrypts the input file into a container, chunks run on the given pool
+   *
+   * @param input
+   * @param output
+   * @param key
+   * @param iv used for every chained mode and CTR
+   * @param algorithm DES or TripleDES
+   * @param mode
+   * @param padding padding of the last chunk
+   * @param chunkSize multiple of the block size
+   * @param pool
+   * @return length of the container
+   * @throws IOException
+   * @throws GeneralSecurityException
+   * @throws InterruptedException
+   */
+  public static long encrypt(Path input, Path output, byte[] key, byte[] iv, String algorithm,
+      String mode, Padding padding, int chunkSize, ExecutorService pool)
+      throws IOException, GeneralSecurityException, InterruptedException {
+    if (chunkSize < BLOCK_SIZE || chunkSize % BLOCK_SIZE != 0)
+      throw new IllegalArgumentException("Chunk size should be a positive multiple of " + BLOCK_SIZE);
+
+    long inputLength = Files.size(input);
+    if (padding == Padding.CTS && inputLength < BLOCK_SIZE)
+      throw new IllegalBlockSizeException("Ciphertext stealing needs at least " + BLOCK_SIZE + " bytes");
+
+    Header header = new Header(algorithm, mode, padding, normalize(iv, BLOCK_SIZE), chunkSize);
+
+    try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+        FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      long length = in.size();
+      int count = chunkCount(length, chunkSize, padding);
+      byte[] headerBytes = header.toBytes();
+      writeFully(out, ByteBuffer.wrap(headerBytes), 0);
+
+      /* every chunk but the last is aligned and keeps its length, so all offsets are known up front */
+      long[] offsets = new long[count];
+      for (int i = 0; i < count; i++)
+        offsets[i] = headerBytes.length + (long) i * chunkSize;
+
+      List<Callable<Void>> tasks = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        int chunk = i;
+        tasks.add(() -> {
+          long start = (long) chunk * chunkSize;
+          byte[] plain = new byte[(int) (chunk == count - 1 ? length - start : chunkSize)];
+          readFully(in, ByteBuffer.wrap(plain), start);
+
+          byte[] result = header.cipher(key, chunk, chunk == count - 1, Cipher.ENCRYPT_MODE).doFinal(plain);
+          writeFully(out, ByteBuffer.wrap(result), offsets[chunk]);
+          if (chunk == count - 1)
+            writeIndex(out, offsets, offsets[chunk] + result.length, length);
+          return null;
+        });
+      }
+
+      runAll(pool, tasks);
+      return out.size();
+    } catch (IOException | GeneralSecurityException | InterruptedException | RuntimeException e) {
+      Files.deleteIfExists(output);
+      throw e;
+    }
+  }
+
+  /**
+   * Number of chunks of the plaintext, ciphertext stealing needs a full block
+   * so a shorter tail is added to the chunk before it
+   */
+  private static int chunkCount(long length, int chunkSize, Padding padding) {
+    long count = Math.max(1, (length + chunkSize - 1) / chunkSize);
+    if (padding == Padding.CTS && count > 1 && length - (count - 1) * chunkSize < BLOCK_SIZE)
+      count--;
+
+    return (int) count;
+  }
+
+  /**
+   * Decrypts a whole container into the output file, chunks run on the given
+   * pool
+   *
+   * @param input
+   * @param output
+   * @param key
+   * @param pool
+   * @return length of the plaintext
+   * @throws IOException
+   * @throws GeneralSecurityException
+   * @throws InterruptedException
+   */
+  public static long decrypt(Path input, Path output, byte[] key, ExecutorService pool)
+      throws IOException, GeneralSecurityException, InterruptedException {
+    try (Reader reader = new Reader(input, key);
+        FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      List<Callable<Void>> tasks = new ArrayList<>();
+      for (int i = 0; i < reader.getChunkCount(); i++) {
+        int chunk = i;
+        tasks.add(() -> {
+          writeFully(out, ByteBuffer.wrap(reader.readChunk(chunk)), (long) chunk * reader.header.chunkSize);
+          return null;
+        });
+      }
+
+      runAll(pool, tasks);
+      return reader.getLength();
+    }
+  }
+
+  /**
+   * Random access to the plaintext of a container, only the chunks covering a
+   * read are decrypted. Reads can run from several threads at once.
+   */
+  public static class Reader implements Closeable {
+    private final FileChannel in;
+    private final byte[] key;
+    private final Header header;
+    private final long[] offsets;
+    private final long indexOffset;
+    private final long length;
+
+    /**
+     * Reads the header and the index
+     *
+     * @param input
+     * @param key
+     * @throws IOException if the file is not a container
+     */
+    public Reader(Path input, byte[] key) throws IOException {
+      this.in = FileChannel.open(input, StandardOpenOption.READ);
+      this.key = key;
+
+      try {
+        long size = in.size();
+        if (size < TRAILER_SIZE)
+          throw new IOException("Not a container, file is too short");
+
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        readFully(in, trailer, size - TRAILER_SIZE);
+        trailer.flip();
+        indexOffset = trailer.getLong();
+        length = trailer.getLong();
+        if (trailer.getInt() != INDEX_MAGIC || indexOffset < 0 || indexOffset > size - TRAILER_SIZE)
+          throw new IOException("Not a container, index is missing");
+
+        byte[] headerBytes = new byte[(int) Math.min(indexOffset, 1024)];
+        readFully(in, ByteBuffer.wrap(headerBytes), 0);
+        header = Header.fromBytes(headerBytes);
+
+        ByteBuffer index = ByteBuffer.allocate((int) (size - TRAILER_SIZE - indexOffset));
+        readFully(in, index, indexOffset);
+        index.flip();
+        offsets = new long[index.getInt()];
+        for (int i = 0; i < offsets.length; i++)
+          offsets[i] = index.getLong();
+      } catch (IOException | RuntimeException e) {
+        in.close();
+        throw e instanceof IOException ? (IOException) e : new IOException("Not a container", e);
+      }
+    }
+
+    public int getChunkCount() {
+      return offsets.length;
+    }
+
+    /**
+     * Length of the plaintext
+     */
+    public long getLength() {
+      return length;
+    }
+
+    public String getAlgorithm() {
+      return header.algorithm;
+    }
+
+    public String getMode() {
+      return header.mode;
+    }
+
+    public int getChunkSize() {
+      return header.chunkSize;
+    }
+
+    /**
+     * Decrypts a single chunk, the padding of the last chunk is cut with the
+     * plaintext length
+     *
+     * @param chunk
+     * @return plaintext of the chunk
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public byte[] readChunk(int chunk) throws IOException, GeneralSecurityException {
+      boolean last = chunk == offsets.length - 1;
+      long end = last ? indexOffset : offsets[chunk + 1];
+      byte[] cipherText = new byte[(int) (end - offsets[chunk])];
+      readFully(in, ByteBuffer.wrap(cipherText), offsets[chunk]);
+
+      byte[] plain = header.cipher(key, chunk, last, Cipher.DECRYPT_MODE).doFinal(cipherText);
+      int plainLength = (int) (last ? length - (long) chunk * header.chunkSize : header.chunkSize);
+      return plain.length == plainLength ? plain : Arrays.copyOf(plain, plainLength);
+    }
+
+    /**
+     * Decrypts the plaintext range, only the chunks it covers are read
+     *
+     * @param offset
+     * @param length the range is cut at the end of the plaintext
+     * @return plaintext of the range
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public byte[] read(long offset, int length) throws IOException, GeneralSecurityException {
+      if (offset < 0 || length < 0)
+        throw new IllegalArgumentException("Range should not be negative");
+
+      byte[] ret = new byte[(int) Math.max(0, Math.min(length, this.length - offset))];
+      int chunkSize = header.chunkSize;
+
+      for (int done = 0; done < ret.length;) {
+        long position = offset + done;
+        int chunk = (int) Math.min(position / chunkSize, offsets.length - 1);
+        byte[] plain = readChunk(chunk);
+        int from = (int) (position - (long) chunk * chunkSize), n = Math.min(plain.length - from, ret.length - done);
+        System.arraycopy(plain, from, ret, done, n);
+        done += n;
+      }
+
+      return ret;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Parameters stored in the container header
+   */
+  private static class Header {
+    private final String algorithm;
+    private final String mode;
+    private final Padding padding;
+    private final byte[] iv;
+    private final int chunkSize;
+
+    Header(String algorithm, String mode, Padding padding, byte[] iv, int chunkSize) {
+      this.algorithm = algorithm;
+      this.mode = mode;
+      this.padding = padding;
+      this.iv = iv;
+      this.chunkSize = chunkSize;
+    }
+
+    byte[] toBytes() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(bytes)) {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeUTF(algorithm);
+        out.writeUTF(mode);
+        out.writeUTF(padding.name());
+        out.write(iv);
+        out.writeInt(chunkSize);
+      }
+
+      return bytes.toByteArray();
+    }
+
+    static Header fromBytes(byte[] bytes) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      if (in.readInt() != MAGIC)
+        throw new IOException("Not a container, header is missing");
+      if (in.readUnsignedByte() != VERSION)
+        throw new IOException("Unsupported container version");
+
+      String algorithm = in.readUTF(), mode = in.readUTF();
+      Padding padding = Padding.valueOf(in.readUTF());
+      byte[] iv = new byte[BLOCK_SIZE];
+      in.readFully(iv);
+      return new Header(algorithm, mode, padding, iv, in.readInt());
+    }
+
+    /**
+     * Mode instance of a chunk, initialized with the chunk's own iv or counter.
+     * Full chunks are aligned and use no padding.
+     */
+    SimpleCipher cipher(byte[] key, int chunk, boolean last, int opmode) throws GeneralSecurityException {
+      SimpleCipher cipher;
+
+      if (mode.equals("CTR")) {
+        CipherCTR cipherCTR = CipherCTR.wide(key, iv, algorithm);
+        cipherCTR.ctr = cipherCTR.counterAt((long) chunk * (chunkSize / BLOCK_SIZE));
+        cipher = cipherCTR;
+      } else if (mode.equals("ECB")) {
+        cipher = new CipherECB(key, algorithm);
+      } else {
+        /* chunk iv is the chunk number xor the iv, encrypted with the key */
+        CipherECB derive = new CipherECB(key, algorithm);
+        byte[] chunkIv = iv.clone();
+        BlockEngine.writeBlock(BlockEngine.readBlock(chunkIv, 0) ^ chunk, chunkIv, 0);
+        chunkIv = derive.encrypt(chunkIv, derive.key);
+
+        if (mode.equals("CBC"))
+          cipher = new CipherCBC(key, chunkIv, algorithm);
+        else if (mode.equals("CFB"))
+          cipher = new CipherCFB(key, chunkIv, algorithm);
+        else
+          cipher = new CipherOFB(key, chunkIv, algorithm);
+      }
+
+      cipher.setPadding(last ? padding : Padding.NONE);
+      cipher.init(opmode);
+      return cipher;
+    }
+  }
+
+  private static void writeIndex(FileChannel out, long[] offsets, long indexOffset, long length)
+      throws IOException {
+    ByteBuffer index = ByteBuffer.allocate(4 + offsets.length * 8 + TRAILER_SIZE);
+    index.putInt(offsets.length);
+    for (long offset : offsets)
+      index.putLong(offset);
+
+    index.putLong(indexOffset).putLong(length).putInt(INDEX_MAGIC);
+    index.flip();
+    writeFully(out, index, indexOffset);
+  }
+
+  /**
+   * Runs the tasks on the pool and throws the first failure with its original
+   * type
+   */
+  private static void runAll(ExecutorService pool, List<Callable<Void>> tasks)
+      throws IOException, GeneralSecurityException, InterruptedException {
+    for (Future<Void> result : pool.invokeAll(tasks)) {
+      try {
+        result.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        /* the common pool wraps checked exceptions of a callable into a RuntimeException */
+        if (cause instanceof RuntimeException && cause.getCause() != null
+            && cause.getClass() == RuntimeException.class)
+          cause = cause.getCause();
+
+        if (cause instanceof IOException)
+          throw (IOException) cause;
+        if (cause instanceof GeneralSecurityException)
+          throw (GeneralSecurityException) cause;
+        if (cause instanceof RuntimeException)
+          throw (RuntimeException) cause;
+        if (cause instanceof Error)
+          throw (Error) cause;
+        throw new IllegalStateException(cause);
+      }
+    }
+  }
+
+  private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = in.read(buffer, position);
+      if (read < 0)
+        throw new IOException("Unexpected end of container");
+      position += read;
+    }
+  }
+
+  private static void writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining())
+      position += out.write(buffer, position);
+  }
+
+  private static byte[] normalize(byte[] any, int n) {
+    byte[] ret = new byte[n];
+    for (int i = 0; i < n; i++)
+      ret[i] = any.length == 0 ? 0 : any[i % any.length];
+
+    return ret;
+  }
+}
@@ -4,14 +4,19 @@
  * Controls the operation mode division process in order to achieve cleaner code structure.
  */
 
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 
 public class CipherController {
+  /* messages at least this long are worth splitting between cores */
+  public static final int PARALLEL_THRESHOLD = 1024 * 1024;
+
   /**
    * Starts the encryption/decryption process with given values.
    * 
@@ -33,32 +38,118 @@ public class CipherController {
       String type) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
       IllegalBlockSizeException, BadPaddingException {
     byte[] result = null;
+    CipherMetrics.Operation operation = CipherMetrics.begin(algorithm, mode, type);
+    operation.enter(CipherMetrics.Phase.SETUP);
 
-    if (mode.equals("CBC")) {
-      CipherCBC cipherCBC = new CipherCBC(message, key, iv, algorithm);
-      result = type == "enc" ? cipherCBC.encrypt() : cipherCBC.decrypt();
-    }
+    try {
+      if (mode.equals("CBC")) {
+        CipherCBC cipherCBC = new CipherCBC(message, key, iv, algorithm);
+        operation.enter(CipherMetrics.Phase.CIPHER);
+        /* only decryption can be split, encryption depends on the previous block */
+        if (type.equals("dec") && isParallel(message))
+          result = cipherCBC.decryptParallel();
+        else
+          result = type.equals("enc") ? cipherCBC.encrypt() : cipherCBC.decrypt();
+      }
 
-    else if (mode.equals("CFB")) {
-      CipherCFB cipherCFB = new CipherCFB(message, key, iv, algorithm);
-      result = type == "enc" ? cipherCFB.encrypt() : cipherCFB.decrypt();
-    }
+      else if (mode.equals("CFB")) {
+        CipherCFB cipherCFB = new CipherCFB(message, key, iv, algorithm);
+        operation.enter(CipherMetrics.Phase.CIPHER);
+        if (type.equals("dec") && isParallel(message))
+          result = cipherCFB.decryptParallel();
+        else
+          result = type.equals("enc") ? cipherCFB.encrypt() : cipherCFB.decrypt();
+      }
 
-    else if (mode.equals("CTR")) {
-      CipherCTR cipherCTR = new CipherCTR(message, key, nonce, algorithm);
-      result = type == "enc" ? cipherCTR.encrypt() : cipherCTR.decrypt();
-    }
+      else if (mode.equals("CTR")) {
+        CipherCTR cipherCTR = new CipherCTR(message, key, nonce, algorithm);
+        operation.enter(CipherMetrics.Phase.CIPHER);
+        /* ctr blocks are independent so large messages are computed in parallel */
+        if (isParallel(message))
+          result = cipherCTR.cryptParallel();
+        else
+          result = type.equals("enc") ? cipherCTR.encrypt() : cipherCTR.decrypt();
+      }
 
-    else if (mode.equals("OFB")) {
-      CipherOFB cipherOFB = new CipherOFB(message, key, iv, algorithm);
-      result = type == "enc" ? cipherOFB.encrypt() : cipherOFB.decrypt();
-    }
+      else if (mode.equals("OFB")) {
+        CipherOFB cipherOFB = new CipherOFB(message, key, iv, algorithm);
+        operation.enter(CipherMetrics.Phase.CIPHER);
+        result = type.equals("enc") ? cipherOFB.encrypt() : cipherOFB.decrypt();
+      }
 
-    else {
-      CipherECB cipherECB = new CipherECB(message, key, algorithm);
-      result = type == "enc" ? cipherECB.encrypt() : cipherECB.decrypt();
+      else {
+        CipherECB cipherECB = new CipherECB(message, key, algorithm);
+        operation.enter(CipherMetrics.Phase.CIPHER);
+        result = type.equals("enc") ? cipherECB.encrypt() : cipherECB.decrypt();
+      }
+    } finally {
+      operation.end(message.length);
     }
 
     return result;
   }
+
+  /**
+   * Same as the string based run with typed mode and direction
+   *
+   * @return encrypted/decrypted data
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   */
+  public static byte[] run(byte[] message, byte[] key, byte[] iv, byte[] nonce, String algorithm, CipherMode mode,
+      Direction direction) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+      IllegalBlockSizeException, BadPaddingException {
+    return run(message, key, iv, nonce, algorithm, mode.name(), direction.getType());
+  }
+
+  /**
+   * Encrypts/decrypts the bytes of src between its position and limit into dst
+   * without copying them to the heap, see SimpleCipher.doFinal(ByteBuffer,
+   * ByteBuffer). The last block is zero padded like the array based run. src
+   * and dst can be the same buffer.
+   *
+   * @return number of bytes written to dst
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   */
+  public static int run(ByteBuffer src, ByteBuffer dst, byte[] key, byte[] iv, byte[] nonce, String algorithm,
+      CipherMode mode, Direction direction) throws NoSuchAlgorithmException, NoSuchPaddingException,
+      InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    CipherMetrics.Operation operation = CipherMetrics.begin(algorithm, mode.name(), direction.getType());
+    operation.enter(CipherMetrics.Phase.SETUP);
+    int length = src.remaining();
+    SimpleCipher cipher;
+
+    try {
+      if (mode == CipherMode.CBC)
+        cipher = new CipherCBC(key, iv, algorithm);
+      else if (mode == CipherMode.CFB)
+        cipher = new CipherCFB(key, iv, algorithm);
+      else if (mode == CipherMode.CTR)
+        cipher = new CipherCTR(key, nonce, algorithm);
+      else if (mode == CipherMode.OFB)
+        cipher = new CipherOFB(key, iv, algorithm);
+      else
+        cipher = new CipherECB(key, algorithm);
+
+      operation.enter(CipherMetrics.Phase.CIPHER);
+      return direction == Direction.ENCRYPT ? cipher.encrypt(src, dst) : cipher.decrypt(src, dst);
+    } finally {
+      operation.end(length);
+    }
+  }
+
+  /**
+   * Parallel paths are only used when the message is large enough and there is
+   * more than one core to share the work
+   */
+  private static boolean isParallel(byte[] message) {
+    return message.length >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1;
+  }
 }
@@ -4,19 +4,21 @@
  * ECB operation for DES Cipher
  */
 
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 
 import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 
 public class CipherECB extends SimpleCipher {
-  public byte[][] message;
+  public byte[] message;
   public byte[] key;
 
   /**
-   * Responsible for creating dividing the block to 64 bit chunks and normalizing
+   * Responsible for padding the message to a multiple of 64 bits and normalizing
    * the key to 64 or 192 bits
    * 
    * @param message
@@ -28,13 +30,27 @@ public class CipherECB extends SimpleCipher {
   public CipherECB(byte[] message, byte[] key, String algorithm)
       throws NoSuchAlgorithmException, NoSuchPaddingException {
     super(algorithm);
-    this.message = distributeMessage(message);
-    this.key = normalizeToNBytes(key, algorithm == "TripleDES" ? DEFAULT_SIZE * 3 : DEFAULT_SIZE);
+    this.message = padMessage(message);
+    this.key = normalizeToNBytes(key, algorithm.equals("TripleDES") ? DEFAULT_SIZE * 3 : DEFAULT_SIZE);
   }
 
   /**
-   * Encryptes the blocks of message one by one using the key
-   * Joins the blocks and constructs a whole message at the end
+   * Cipher without a message for incremental use with init, update and doFinal
+   *
+   * @param key
+   * @param algorithm
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   */
+  public CipherECB(byte[] key, String algorithm)
+      throws NoSuchAlgorithmException, NoSuchPaddingException {
+    this(new byte[0], key, algorithm);
+  }
+
+  /**
+   * Encryptes the blocks of message using the key, the blocks are independent
+   * so the engine gets all of them at once
+   * Blocks are written to their offsets in the returned message
    * 
    * @return constructed message
    * @throws InvalidKeyException
@@ -43,20 +59,18 @@ public class CipherECB extends SimpleCipher {
    */
   public byte[] encrypt() throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
     int length = message.length;
-    byte[][] ret = new byte[length][DEFAULT_SIZE];
+    byte[] ret = new byte[length];
+    BlockEngine engine = engine(key, Cipher.ENCRYPT_MODE);
 
-    for (int i = 0; i < length; i++) {
-      byte[] cipherText = encrypt(message[i], key);
-      for (int j = 0; j < DEFAULT_SIZE; j++)
-        ret[i][j] = cipherText[j];
-    }
+    engine.processBlocks(message, 0, ret, 0, length / DEFAULT_SIZE);
 
-    return joinMessage(ret);
+    return ret;
   }
 
   /**
-   * Decryptes the blocks of message one by one using the key.
-   * Joins the blocks and constructs a whole message at the end
+   * Decryptes the blocks of message using the key, the blocks are independent
+   * so the engine gets all of them at once.
+   * Blocks are written to their offsets in the returned message
    * 
    * @return constructed message
    * @throws InvalidKeyException
@@ -65,14 +79,61 @@ public class CipherECB extends SimpleCipher {
    */
   public byte[] decrypt() throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
     int length = message.length;
-    byte[][] ret = new byte[length][DEFAULT_SIZE];
+    byte[] ret = new byte[length];
+    BlockEngine engine = engine(key, Cipher.DECRYPT_MODE);
+
+    engine.processBlocks(message, 0, ret, 0, length / DEFAULT_SIZE);
 
-    for (int i = 0; i < length; i++) {
-      byte[] cipherText = decrypt(message[i], key);
-      for (int j = 0; j < DEFAULT_SIZE; j++)
-        ret[i][j] = cipherText[j];
+    return ret;
+  }
+
+  @Override
+  protected void updateBlocks(byte[] in, int inOff, int length, byte[] out, int outOff)
+      throws InvalidKeyException {
+    engine(key, opmode).processBlocks(in, inOff, out, outOff, length / DEFAULT_SIZE);
+  }
+
+  @Override
+  protected void updateBlocks(ByteBuffer in, int inOff, int length, ByteBuffer out, int outOff)
+      throws InvalidKeyException {
+    BlockEngine engine = engine(key, opmode);
+
+    for (int i = 0; i < length; i += DEFAULT_SIZE)
+      writeBlock(engine.processBlock(readBlock(in, inOff + i)), out, outOff + i);
+  }
+
+  /**
+   * Ciphertext stealing in the block order of CBC. The last block is
+   * completed with the tail of the full block's result, its result is written
+   * first and followed by the head of the full block's result, so an aligned
+   * message has its last two blocks swapped. The steps are the same in both
+   * directions. A single block message is plain ECB.
+   *
+   * @return number of bytes written to out
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException if the message is shorter than a block
+   */
+  @Override
+  protected int finishStealing(byte[] in, int length, byte[] out, int outOff)
+      throws InvalidKeyException, IllegalBlockSizeException {
+    if (length < DEFAULT_SIZE)
+      throw new IllegalBlockSizeException("Ciphertext stealing needs at least " + DEFAULT_SIZE + " bytes");
+
+    BlockEngine engine = engine(key, opmode);
+    if (length == DEFAULT_SIZE) {
+      engine.processBlock(in, 0, out, outOff);
+      return DEFAULT_SIZE;
     }
 
-    return joinMessage(ret);
+    int tail = length - DEFAULT_SIZE;
+    byte[] block = new byte[DEFAULT_SIZE];
+    long full = engine.processBlock(readBlock(in, 0));
+    writeBlock(full, block, 0);
+    System.arraycopy(in, DEFAULT_SIZE, block, 0, tail);
+
+    writeBlock(engine.processBlock(readBlock(block, 0)), out, outOff);
+    writeBlock(full, block, 0);
+    System.arraycopy(block, 0, out, outOff + DEFAULT_SIZE, tail);
+    return length;
   }
 }
@@ -0,0 +1,346 @@
+/**
+ * @author Canberk Aslan
+ * Instrumentation of the cipher hot paths. An operation is split into phases,
+ * setup (mode construction, padding the message), cipher, io and unpad, and
+ * reported with the number of bytes, blocks and bytes allocated by the calling
+ * thread to the installed MetricsRegistry and as a des.CipherOperation JFR
+ * event. Every key schedule set up by the EngineCache is reported as a
+ * des.KeySetup event and engines taken from the cache are counted.
+ * When no registry is installed and no recording has the events enabled an
+ * operation is a shared disabled instance and the instrumented code only pays
+ * for a field read and a branch. JFR itself is not started by the metrics, the
+ * event types are only looked up once a recording has initialized it.
+ *
+ * JFR: java -XX:StartFlightRecording:filename=run.jfr FileCipher ...
+ *      jfr print --events des.CipherOperation run.jfr
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+public final class CipherMetrics {
+  public static final String OPERATIONS = "cipher.operations";
+  public static final String BYTES = "cipher.bytes";
+  public static final String BLOCKS = "cipher.blocks";
+  public static final String ALLOCATED = "cipher.allocated.bytes";
+  public static final String KEY_SETUPS = "cipher.key.setups";
+  public static final String ENGINE_REUSES = "cipher.engine.reuses";
+  /* timer names are this prefix followed by the lower case phase, e.g. cipher.time.io */
+  public static final String TIME_PREFIX = "cipher.time.";
+  public static final String KEY_SETUP_TIME = TIME_PREFIX + "key";
+
+  public enum Phase {
+    SETUP, CIPHER, IO, UNPAD;
+
+    private final String timer = TIME_PREFIX + name().toLowerCase(Locale.ROOT);
+  }
+
+  private static volatile MetricsRegistry registry;
+
+  private CipherMetrics() {
+  }
+
+  /**
+   * Installs the registry receiving the metrics, null turns the registry off
+   *
+   * @param registry
+   */
+  public static void setRegistry(MetricsRegistry registry) {
+    CipherMetrics.registry = registry;
+  }
+
+  public static MetricsRegistry getRegistry() {
+    return registry;
+  }
+
+  /**
+   * Starts measuring an operation, the caller moves it from phase to phase
+   * with enter and finishes it with end in a finally block
+   *
+   * @param algorithm
+   * @param mode
+   * @param type enc or dec
+   * @return operation, a no-op one when nothing is listening
+   */
+  public static Operation begin(String algorithm, String mode, String type) {
+    MetricsRegistry registry = CipherMetrics.registry;
+    /* JFR is only asked once it runs, looking up an event type would start it */
+    boolean recorded = FlightRecorder.isInitialized() && Events.OPERATION.isEnabled();
+    if (registry == null && !recorded)
+      return Operation.DISABLED;
+
+    return new Operation(registry, recorded ? new OperationEvent() : null, algorithm, mode, type);
+  }
+
+  /**
+   * Reports a key schedule set up for a new engine
+   *
+   * @param algorithm
+   * @param nanos time spent creating the engine
+   */
+  static void keySetup(String algorithm, long nanos) {
+    MetricsRegistry registry = CipherMetrics.registry;
+    if (registry != null) {
+      registry.count(KEY_SETUPS, 1);
+      registry.time(KEY_SETUP_TIME, nanos);
+    }
+
+    if (!FlightRecorder.isInitialized() || !Events.KEY_SETUP.isEnabled())
+      return;
+
+    KeySetupEvent event = new KeySetupEvent();
+    if (event.shouldCommit()) {
+      event.algorithm = algorithm;
+      event.setupTime = nanos;
+      event.commit();
+    }
+  }
+
+  /**
+   * Counts an engine handed out by the cache without a new key schedule
+   */
+  static void engineReused() {
+    MetricsRegistry registry = CipherMetrics.registry;
+    if (registry != null)
+      registry.count(ENGINE_REUSES, 1);
+  }
+
+  /**
+   * Phase timings of a single operation. An operation belongs to the thread
+   * that began it, allocation is measured on that thread only so work done by
+   * parallel workers is not part of it.
+   */
+  public static final class Operation {
+    private static final Operation DISABLED = new Operation(null, null, null, null, null);
+
+    private final MetricsRegistry registry;
+    private final OperationEvent event;
+    private final long[] nanos;
+    private final long allocatedAtStart;
+    private Phase phase;
+    private long mark;
+
+    private Operation(MetricsRegistry registry, OperationEvent event, String algorithm, String mode,
+        String type) {
+      this.registry = registry;
+      this.event = event;
+
+      if (registry == null && event == null) {
+        this.nanos = null;
+        this.allocatedAtStart = -1;
+        return;
+      }
+
+      this.nanos = new long[Phase.values().length];
+      this.allocatedAtStart = Allocation.current();
+      if (event != null) {
+        event.algorithm = algorithm;
+        event.mode = mode;
+        event.direction = type;
+        event.begin();
+      }
+    }
+
+    /**
+     * Ends the current phase and starts the given one
+     *
+     * @param next
+     */
+    public void enter(Phase next) {
+      if (nanos == null)
+        return;
+
+      long now = System.nanoTime();
+      if (phase != null)
+        nanos[phase.ordinal()] += now - mark;
+      phase = next;
+      mark = now;
+    }
+
+    /**
+     * Adds time spent in a phase by another thread, e.g. a pipeline stage. The
+     * caller makes sure that thread is done. Times of stages running at the
+     * same time add up, so the phases can take longer than the operation.
+     *
+     * @param phase
+     * @param time nanoseconds spent in the phase
+     */
+    public void add(Phase phase, long time) {
+      if (nanos != null)
+        nanos[phase.ordinal()] += time;
+    }
+
+    /**
+     * Ends the current phase and reports the operation, a failed operation is
+     * reported with the bytes processed until it failed
+     *
+     * @param bytes number of input bytes processed
+     */
+    public void end(long bytes) {
+      if (nanos == null)
+        return;
+
+      enter(null);
+      long blocks = (bytes + BlockEngine.BLOCK_SIZE - 1) / BlockEngine.BLOCK_SIZE;
+      long allocated = allocatedAtStart < 0 ? -1 : Allocation.current() - allocatedAtStart;
+
+      if (registry != null) {
+        registry.count(OPERATIONS, 1);
+        registry.count(BYTES, bytes);
+        registry.count(BLOCKS, blocks);
+        if (allocated >= 0)
+          registry.count(ALLOCATED, allocated);
+        for (Phase p : Phase.values())
+          if (nanos[p.ordinal()] > 0)
+            registry.time(p.timer, nanos[p.ordinal()]);
+      }
+
+      if (event != null) {
+        event.end();
+        if (event.shouldCommit()) {
+          event.bytes = bytes;
+          event.blocks = blocks;
+          event.allocated = allocated;
+          event.setupTime = nanos[Phase.SETUP.ordinal()];
+          event.cipherTime = nanos[Phase.CIPHER.ordinal()];
+          event.ioTime = nanos[Phase.IO.ordinal()];
+          event.unpadTime = nanos[Phase.UNPAD.ordinal()];
+          event.commit();
+        }
+      }
+    }
+  }
+
+  /**
+   * Registry keeping the counters and timer totals in memory, report gives
+   * them with the derived blocks per second of the cipher phase
+   */
+  public static class Counters implements MetricsRegistry {
+    private final ConcurrentHashMap<String, LongAdder> values = new ConcurrentHashMap<>();
+
+    @Override
+    public void count(String name, long delta) {
+      values.computeIfAbsent(name, n -> new LongAdder()).add(delta);
+    }
+
+    @Override
+    public void time(String name, long nanos) {
+      count(name, nanos);
+    }
+
+    public long get(String name) {
+      LongAdder value = values.get(name);
+      return value == null ? 0 : value.sum();
+    }
+
+    /**
+     * Counters and timer totals in nanoseconds sorted by name
+     */
+    public Map<String, Long> snapshot() {
+      Map<String, Long> snapshot = new TreeMap<>();
+      values.forEach((name, value) -> snapshot.put(name, value.sum()));
+      return snapshot;
+    }
+
+    public String report() {
+      StringBuilder report = new StringBuilder();
+      snapshot().forEach((name, value) -> report.append(name).append('=').append(value).append(' '));
+      long cipherTime = get(Phase.CIPHER.timer);
+      if (cipherTime > 0)
+        report.append(String.format(Locale.ROOT, "blocks/s=%.0f", get(BLOCKS) * 1e9 / cipherTime));
+      return report.toString().trim();
+    }
+  }
+
+  /**
+   * Event types, loaded on first use so a JVM without a recording does not
+   * start JFR for them
+   */
+  private static class Events {
+    static final EventType OPERATION = EventType.getEventType(OperationEvent.class);
+    static final EventType KEY_SETUP = EventType.getEventType(KeySetupEvent.class);
+  }
+
+  /**
+   * Bytes allocated by the current thread, -1 when the JVM does not tell.
+   * The management bean is only loaded once something is measured.
+   */
+  private static class Allocation {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean SUPPORTED = THREADS instanceof com.sun.management.ThreadMXBean
+        && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported();
+
+    static long current() {
+      if (!SUPPORTED)
+        return -1;
+      return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+  }
+
+  @Name("des.CipherOperation")
+  @Label("Cipher Operation")
+  @Category("DES Cipher")
+  static class OperationEvent extends Event {
+    @Label("Algorithm")
+    String algorithm;
+
+    @Label("Mode")
+    String mode;
+
+    @Label("Direction")
+    String direction;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Blocks")
+    long blocks;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+
+    @Label("Setup Time")
+    @Timespan
+    long setupTime;
+
+    @Label("Cipher Time")
+    @Timespan
+    long cipherTime;
+
+    @Label("I/O Time")
+    @Timespan
+    long ioTime;
+
+    @Label("Unpad Time")
+    @Timespan
+    long unpadTime;
+  }
+
+  @Name("des.KeySetup")
+  @Label("Key Setup")
+  @Category("DES Cipher")
+  static class KeySetupEvent extends Event {
+    @Label("Algorithm")
+    String algorithm;
+
+    @Label("Setup Time")
+    @Timespan
+    long setupTime;
+  }
+}
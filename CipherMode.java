@@ -0,0 +1,9 @@
+/**
+ * @author Canberk Aslan
+ * Block cipher modes of operation, the names are the ones used on the command
+ * line and by CipherController
+ */
+
+public enum CipherMode {
+  ECB, CBC, CFB, OFB, CTR
+}
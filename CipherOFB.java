@@ -4,20 +4,24 @@
  * OFB operation for DES Cipher
  */
 
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 
 import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 
 public class CipherOFB extends SimpleCipher {
-  public byte[][] message;
+  public byte[] message;
   public byte[] key;
   public byte[] iv;
+  /* output feedback register for update/doFinal */
+  private long register;
 
   /**
-   * Responsible for creating dividing the block to 64 bit chunks and normalizing
+   * Responsible for padding the message to a multiple of 64 bits and normalizing
    * the key to 64 or 192 bits, iv to 64 bits
    * 
    * @param message
@@ -30,16 +34,30 @@ public class CipherOFB extends SimpleCipher {
   public CipherOFB(byte[] message, byte[] key, byte[] iv, String algorithm)
       throws NoSuchAlgorithmException, NoSuchPaddingException {
     super(algorithm);
-    this.message = distributeMessage(message);
+    this.message = padMessage(message);
     this.iv = normalizeToNBytes(iv, DEFAULT_SIZE);
-    this.key = normalizeToNBytes(key, algorithm == "TripleDES" ? DEFAULT_SIZE * 3 : DEFAULT_SIZE);
+    this.key = normalizeToNBytes(key, algorithm.equals("TripleDES") ? DEFAULT_SIZE * 3 : DEFAULT_SIZE);
+  }
+
+  /**
+   * Cipher without a message for incremental use with init, update and doFinal
+   *
+   * @param key
+   * @param iv
+   * @param algorithm
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   */
+  public CipherOFB(byte[] key, byte[] iv, String algorithm)
+      throws NoSuchAlgorithmException, NoSuchPaddingException {
+    this(new byte[0], key, iv, algorithm);
   }
 
   /**
    * First use iv to encrypt, then xor it with plaintext.
    * For the next steps use previously encrypted text for encryption and xor with
    * plaintext after encryption
-   * Joins the blocks and constructs a whole message at the end
+   * Blocks are written to their offsets in the returned message
    * 
    * @return constructed message
    * @throws InvalidKeyException
@@ -48,26 +66,27 @@ public class CipherOFB extends SimpleCipher {
    */
   public byte[] encrypt() throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
     int length = message.length;
-    byte[][] ret = new byte[length][DEFAULT_SIZE];
-    byte[] middlewareText = new byte[DEFAULT_SIZE];
+    byte[] ret = new byte[length];
+    long register = readBlock(iv, 0);
+    BlockEngine engine = engine(key, Cipher.ENCRYPT_MODE);
 
-    for (int i = 0; i < length; i++) {
-      /* if first step use iv if not use previous encrypted data */
-      middlewareText = encrypt(i == 0 ? iv : middlewareText, key);
-      byte[] cipherText = this.xorArrays(message[i], middlewareText, DEFAULT_SIZE);
-
-      for (int j = 0; j < DEFAULT_SIZE; j++)
-        ret[i][j] = cipherText[j];
+    if (keystreamCache.isEnabled()) {
+      keystreamCache.xor(KeystreamCache.Source.ofb(keystreamCache, algorithm, key, register, engine), message, ret,
+          length);
+      return ret;
     }
 
-    return joinMessage(ret);
+    /* if first step use iv if not use previous encrypted data */
+    keystream(engine, register, message, 0, length, ret, 0);
+
+    return ret;
   }
 
   /**
    * First use iv to decrypt, then xor it with ciphertext.
    * For the next steps use previously decrypted text for decryption and xor with
    * ciphertext after decryption
-   * Joins the blocks and constructs a whole message at the end
+   * Blocks are written to their offsets in the returned message
    * 
    * @return constructed message
    * @throws InvalidKeyException
@@ -76,18 +95,76 @@ public class CipherOFB extends SimpleCipher {
    */
   public byte[] decrypt() throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
     int length = message.length;
-    byte[][] ret = new byte[length][DEFAULT_SIZE];
-    byte[] middlewareText = new byte[DEFAULT_SIZE];
+    byte[] ret = new byte[length];
+    long register = readBlock(iv, 0);
+    BlockEngine engine = engine(key, Cipher.ENCRYPT_MODE);
+
+    if (keystreamCache.isEnabled()) {
+      keystreamCache.xor(KeystreamCache.Source.ofb(keystreamCache, algorithm, key, register, engine), message, ret,
+          length);
+      return ret;
+    }
+
+    /* if first step use iv if not use previous decrypted data */
+    keystream(engine, register, message, 0, length, ret, 0);
+
+    return ret;
+  }
+
+  @Override
+  protected void resetChain() {
+    register = readBlock(iv, 0);
+  }
+
+  @Override
+  protected void updateBlocks(byte[] in, int inOff, int length, byte[] out, int outOff)
+      throws InvalidKeyException {
+    register = keystream(engine(key, Cipher.ENCRYPT_MODE), register, in, inOff, length, out, outOff);
+  }
+
+  @Override
+  protected void updateBlocks(ByteBuffer in, int inOff, int length, ByteBuffer out, int outOff)
+      throws InvalidKeyException {
+    BlockEngine engine = engine(key, Cipher.ENCRYPT_MODE);
+
+    for (int i = 0; i < length; i += DEFAULT_SIZE) {
+      register = engine.processBlock(register);
+      writeBlock(readBlock(in, inOff + i) ^ register, out, outOff + i);
+    }
+  }
+
+  /**
+   * Runs the feedback register through the engine for a batch of blocks, then
+   * xors the whole batch with the input in one pass of the XorKernel. in and
+   * out can be the same array.
+   *
+   * @return register after the last block
+   */
+  private long keystream(BlockEngine engine, long register, byte[] in, int inOff, int length, byte[] out,
+      int outOff) {
+    byte[] keystream = new byte[Math.min(length, KEYSTREAM_BATCH)];
 
-    for (int i = 0; i < length; i++) {
-      /* if first step use iv if not use previous decrypted data */
-      middlewareText = encrypt(i == 0 ? iv : middlewareText, key);
-      byte[] plainText = this.xorArrays(message[i], middlewareText, DEFAULT_SIZE);
+    for (int done = 0; done < length; done += keystream.length) {
+      int n = Math.min(keystream.length, length - done);
+      for (int j = 0; j < n; j += DEFAULT_SIZE) {
+        register = engine.processBlock(register);
+        writeBlock(register, keystream, j);
+      }
 
-      for (int j = 0; j < DEFAULT_SIZE; j++)
-        ret[i][j] = plainText[j];
+      XorKernel.get().xor(in, inOff + done, keystream, 0, out, outOff + done, n);
     }
 
-    return joinMessage(ret);
+    return register;
+  }
+
+  @Override
+  protected int finishStealing(byte[] in, int length, byte[] out, int outOff)
+      throws InvalidKeyException, IllegalBlockSizeException {
+    return finishStream(in, length, out, outOff);
+  }
+
+  @Override
+  protected boolean isStreamMode() {
+    return true;
   }
 }
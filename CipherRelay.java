@@ -0,0 +1,425 @@
+/**
+ * @author Canberk Aslan
+ * Encrypting TCP relay. Every accepted connection is paired with a connection
+ * to the target and the bytes are passed in both directions through a CTR or
+ * OFB keystream, so the relay works byte by byte and never waits for a full
+ * block. An encrypting relay in front of the clients and a decrypting relay in
+ * front of the server carry the traffic between them encrypted.
+ *
+ * The side of the relay facing the plaintext peer encrypts. Every direction of
+ * every connection starts with a random 8 byte header which is the iv of that
+ * direction, OFB starts from it and CTR uses the 64 bit counter of
+ * CipherCTR.wide starting at E(header), so streams do not share a keystream.
+ *
+ * A single thread runs all connections on a selector. Each direction has one
+ * pooled direct buffer, reading from a side stops while the buffer towards the
+ * other side is full, which passes the backpressure on to the sender.
+ *
+ * Usage: java CipherRelay -e|-d <listen port> <target host:port> DES|3DES CTR|OFB <keyfile> [-backend jce|java|bitslice]
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+
+import javax.crypto.Cipher;
+
+public class CipherRelay implements Runnable, Closeable {
+  public static final int BUFFER_SIZE = 16 * 1024;
+  public static final int HEADER_SIZE = 8;
+  public static final int BACKLOG = 1024;
+  /* keystream is generated this many bytes at a time */
+  private static final int KEYSTREAM_SIZE = 4096;
+  private static final byte[] ZEROS = new byte[KEYSTREAM_SIZE];
+
+  private final Selector selector;
+  private final ServerSocketChannel server;
+  private final InetSocketAddress target;
+  private final byte[] key;
+  private final String algorithm;
+  private final String mode;
+  private final boolean encrypt;
+  private final BufferPool pool = new BufferPool(BUFFER_SIZE, BACKLOG);
+  private final SecureRandom random = new SecureRandom();
+  /* heap copy of a buffer region while it is xored, only used by the selector thread */
+  private final byte[] scratch = new byte[BUFFER_SIZE];
+  private volatile boolean running = true;
+
+  /**
+   * Binds the listening socket, connections are accepted once run is called
+   *
+   * @param listen
+   * @param target
+   * @param key
+   * @param algorithm DES or TripleDES
+   * @param mode CTR or OFB
+   * @param type enc or dec
+   * @throws IOException
+   * @throws GeneralSecurityException if no keystream can be created with the key
+   */
+  public CipherRelay(InetSocketAddress listen, InetSocketAddress target, byte[] key, String algorithm, String mode,
+      String type) throws IOException, GeneralSecurityException {
+    if (!mode.equals("CTR") && !mode.equals("OFB"))
+      throw new IllegalArgumentException("Relay needs a stream mode, CTR or OFB");
+
+    this.target = target;
+    this.key = key;
+    this.algorithm = algorithm;
+    this.mode = mode;
+    this.encrypt = type.equals("enc");
+
+    /* fails early on a bad key or algorithm instead of on the first connection */
+    new Keystream(new byte[HEADER_SIZE]).xor(scratch, 0, 1);
+
+    this.selector = Selector.open();
+    this.server = ServerSocketChannel.open();
+    server.bind(listen, BACKLOG);
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  /**
+   * Starts a relay from the command line and runs it on the main thread
+   *
+   * @param args
+   * @throws IOException
+   * @throws GeneralSecurityException
+   */
+  public static void main(String[] args) throws IOException, GeneralSecurityException {
+    if (!validateArguments(args))
+      throw new Error("Bad command line arguments");
+
+    String[] keys = FileIO.readKeysFromFile(args[5]);
+    int separator = args[2].lastIndexOf(':');
+    InetSocketAddress target = new InetSocketAddress(args[2].substring(0, separator),
+        Integer.parseInt(args[2].substring(separator + 1)));
+
+    if (args.length == 8)
+      System.setProperty(BlockEngine.BACKEND_PROPERTY, args[7]);
+
+    CipherRelay relay = new CipherRelay(new InetSocketAddress(Integer.parseInt(args[1])), target,
+        keys[1].getBytes(FileIO.ISO_8859_1), args[3].equals("DES") ? "DES" : "TripleDES", args[4],
+        args[0].equals("-e") ? "enc" : "dec");
+    System.out.println("relay listening on " + relay.getPort() + " -> " + target);
+    relay.run();
+  }
+
+  public static boolean validateArguments(String[] args) {
+    if (args.length != 6 && !(args.length == 8 && args[6].equals("-backend") && BlockEngine.isBackend(args[7])))
+      return false;
+
+    return (args[0].equals("-e") || args[0].equals("-d"))
+        && args[1].matches("\\d+") && args[2].matches(".+:\\d+")
+        && (args[3].equals("DES") || args[3].equals("3DES"))
+        && (args[4].equals("CTR") || args[4].equals("OFB"));
+  }
+
+  public int getPort() {
+    return server.socket().getLocalPort();
+  }
+
+  /**
+   * Runs the selector loop until the relay is closed
+   */
+  @Override
+  public void run() {
+    try {
+      while (running) {
+        selector.select();
+
+        Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+        while (selected.hasNext()) {
+          SelectionKey selectionKey = selected.next();
+          selected.remove();
+
+          if (!selectionKey.isValid())
+            continue;
+
+          if (selectionKey.isAcceptable())
+            accept();
+          else
+            ((Endpoint) selectionKey.attachment()).handle(selectionKey);
+        }
+      }
+    } catch (IOException e) {
+      if (running)
+        throw new UncheckedIOException(e);
+    } finally {
+      shutdown();
+    }
+  }
+
+  /**
+   * Stops the selector loop, open connections are closed by the loop
+   */
+  @Override
+  public void close() {
+    running = false;
+    selector.wakeup();
+  }
+
+  private void shutdown() {
+    for (SelectionKey selectionKey : selector.keys())
+      if (selectionKey.attachment() instanceof Endpoint)
+        ((Endpoint) selectionKey.attachment()).connection.close();
+
+    try {
+      server.close();
+      selector.close();
+    } catch (IOException e) {
+      /* nothing left to release */
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel client = server.accept();
+    if (client == null)
+      return;
+
+    SocketChannel upstream = SocketChannel.open();
+    try {
+      client.configureBlocking(false);
+      client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      upstream.configureBlocking(false);
+      upstream.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      /* a loopback connect can complete right away */
+      new Connection(client, upstream, upstream.connect(target));
+    } catch (IOException | GeneralSecurityException e) {
+      client.close();
+      upstream.close();
+    }
+  }
+
+  /**
+   * Both sides of a relayed connection and the two directions between them
+   */
+  private class Connection {
+    private final Endpoint client;
+    private final Endpoint upstream;
+    private final Pipe toUpstream;
+    private final Pipe toClient;
+    private boolean closed;
+
+    Connection(SocketChannel clientChannel, SocketChannel upstreamChannel, boolean connected)
+        throws IOException, GeneralSecurityException {
+      toUpstream = new Pipe(encrypt);
+      toClient = new Pipe(!encrypt);
+      client = new Endpoint(this, clientChannel, true, toUpstream, toClient);
+      upstream = new Endpoint(this, upstreamChannel, connected, toClient, toUpstream);
+      client.selectionKey = clientChannel.register(selector, 0, client);
+      upstream.selectionKey = upstreamChannel.register(selector, 0, upstream);
+      update();
+    }
+
+    /**
+     * Passes the end of a direction on once its buffer is drained, closes the
+     * connection when both directions ended and sets the interest of both sides
+     */
+    void update() throws IOException {
+      finish(toUpstream, upstream);
+      finish(toClient, client);
+      if (toUpstream.shutdown && toClient.shutdown) {
+        close();
+        return;
+      }
+
+      client.selectionKey.interestOps(client.interestOps());
+      upstream.selectionKey.interestOps(upstream.interestOps());
+    }
+
+    private void finish(Pipe pipe, Endpoint destination) throws IOException {
+      if (pipe.eof && !pipe.hasData() && !pipe.shutdown && destination.connected) {
+        destination.channel.shutdownOutput();
+        pipe.shutdown = true;
+      }
+    }
+
+    void close() {
+      if (closed)
+        return;
+
+      closed = true;
+      client.close();
+      upstream.close();
+      pool.release(toUpstream.buffer);
+      pool.release(toClient.buffer);
+    }
+  }
+
+  /**
+   * One socket of a connection, it reads into the inbound pipe and writes the
+   * outbound pipe
+   */
+  private class Endpoint {
+    private final Connection connection;
+    private final SocketChannel channel;
+    private final Pipe inbound;
+    private final Pipe outbound;
+    private SelectionKey selectionKey;
+    private boolean connected;
+
+    Endpoint(Connection connection, SocketChannel channel, boolean connected, Pipe inbound, Pipe outbound) {
+      this.connection = connection;
+      this.channel = channel;
+      this.connected = connected;
+      this.inbound = inbound;
+      this.outbound = outbound;
+    }
+
+    void handle(SelectionKey selectionKey) {
+      try {
+        if (selectionKey.isConnectable() && !(connected = channel.finishConnect()))
+          return;
+        if (selectionKey.isReadable())
+          inbound.readFrom(channel);
+        if (selectionKey.isWritable())
+          outbound.writeTo(channel);
+
+        connection.update();
+      } catch (IOException e) {
+        connection.close();
+      }
+    }
+
+    /**
+     * Reads only while there is room towards the other side, writes only while
+     * there is something to write
+     */
+    int interestOps() {
+      if (!connected)
+        return SelectionKey.OP_CONNECT;
+
+      int ops = 0;
+      if (inbound.canRead())
+        ops |= SelectionKey.OP_READ;
+      if (outbound.hasData())
+        ops |= SelectionKey.OP_WRITE;
+
+      return ops;
+    }
+
+    void close() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        /* the connection is dropped either way */
+      }
+    }
+  }
+
+  /**
+   * One direction of a connection. The buffer stays in fill mode, bytes are
+   * transformed as soon as they are read and flipped only while writing.
+   * An encrypting pipe starts with its header in the buffer, a decrypting pipe
+   * reads the header of the peer before anything else.
+   */
+  private class Pipe {
+    private final ByteBuffer buffer = pool.acquire();
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private Keystream keystream;
+    private boolean eof;
+    private boolean shutdown;
+
+    Pipe(boolean encrypt) throws GeneralSecurityException {
+      if (encrypt) {
+        random.nextBytes(header.array());
+        keystream = new Keystream(header.array());
+        buffer.put(header);
+      }
+    }
+
+    boolean canRead() {
+      return !eof && buffer.hasRemaining();
+    }
+
+    boolean hasData() {
+      return buffer.position() > 0;
+    }
+
+    void readFrom(SocketChannel channel) throws IOException {
+      if (keystream == null) {
+        if (channel.read(header) < 0) {
+          eof = true;
+          return;
+        }
+        if (header.hasRemaining())
+          return;
+
+        keystream = newKeystream(header.array());
+      }
+
+      int start = buffer.position(), read = channel.read(buffer);
+      if (read < 0) {
+        eof = true;
+        return;
+      }
+
+      /* direct buffers are xored through a heap copy, one bulk get and put per read */
+      buffer.get(start, scratch, 0, read);
+      try {
+        keystream.xor(scratch, 0, read);
+      } catch (InvalidKeyException e) {
+        throw new IOException("Cannot generate the keystream", e);
+      }
+      buffer.put(start, scratch, 0, read);
+    }
+
+    private Keystream newKeystream(byte[] header) throws IOException {
+      try {
+        return new Keystream(header);
+      } catch (GeneralSecurityException e) {
+        throw new IOException("Cannot create the keystream", e);
+      }
+    }
+
+    void writeTo(SocketChannel channel) throws IOException {
+      buffer.flip();
+      channel.write(buffer);
+      buffer.compact();
+    }
+  }
+
+  /**
+   * Keystream of one direction. CTR and OFB xor the data with a keystream, so
+   * running zeros through update gives the keystream itself.
+   */
+  private class Keystream {
+    private final SimpleCipher cipher;
+    private final byte[] block = new byte[KEYSTREAM_SIZE];
+    private int used = KEYSTREAM_SIZE;
+
+    Keystream(byte[] header) throws GeneralSecurityException {
+      cipher = mode.equals("CTR") ? CipherCTR.wide(key, header, algorithm) : new CipherOFB(key, header, algorithm);
+      cipher.init(Cipher.ENCRYPT_MODE);
+    }
+
+    /**
+     * Xors the data with the keystream, every run covered by the current
+     * keystream block goes through the XorKernel in one call
+     */
+    void xor(byte[] data, int off, int len) throws InvalidKeyException {
+      for (int done = 0; done < len;) {
+        if (used == KEYSTREAM_SIZE) {
+          cipher.update(ZEROS, 0, KEYSTREAM_SIZE, block, 0);
+          used = 0;
+        }
+
+        int n = Math.min(len - done, KEYSTREAM_SIZE - used);
+        XorKernel.get().xor(data, off + done, block, used, data, off + done, n);
+        used += n;
+        done += n;
+      }
+    }
+  }
+}
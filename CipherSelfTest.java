@@ -0,0 +1,217 @@
+/**
+ * @author Canberk Aslan
+ * Known answer tests and cross checks of the pure Java engines. DesEngine and
+ * BitslicedDes are run on the published DES and TripleDES vectors in both
+ * directions, then on random keys and blocks against the JCE provider. Batches
+ * of different sizes go through processBlocks so the table driven and the
+ * bitsliced paths of BitslicedDes are both covered. Containers are written
+ * and read back at the lengths around a chunk boundary. Every failed check is
+ * printed and the run ends with an Error if there was one.
+ *
+ * Usage: java CipherSelfTest [-r rounds]
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.spec.SecretKeySpec;
+
+public class CipherSelfTest {
+  public static final int DEFAULT_ROUNDS = 200;
+  /* small chunks so the boundary cases stay small */
+  private static final int CONTAINER_CHUNK = 64;
+
+  /* algorithm, key, plaintext, ciphertext in hex */
+  private static final String[][] VECTORS = {
+      /* FIPS 46 worked example */
+      { "DES", "133457799bbcdff1", "0123456789abcdef", "85e813540f0ab405" },
+      /* FIPS 81 example, "Now is t" */
+      { "DES", "0123456789abcdef", "4e6f772069732074", "3fa40e8a984d4815" },
+      /* SP 800-67 example, "The qufck brown fox jump" with three keys */
+      { "TripleDES", "0123456789abcdef23456789abcdef01456789abcdef0123",
+          "54686520717566636b2062726f776e20666f78206a756d70",
+          "a826fd8ce53b855fcce21c8112256fe668d5c05dd9b6b900" },
+      /* three equal keys are single DES */
+      { "TripleDES", "133457799bbcdff1133457799bbcdff1133457799bbcdff1", "0123456789abcdef",
+          "85e813540f0ab405" } };
+
+  private static int failures;
+
+  public static void main(String[] args) throws GeneralSecurityException, IOException, InterruptedException {
+    int rounds = DEFAULT_ROUNDS;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (args[i].equals("-r"))
+        rounds = Integer.parseInt(args[i + 1]);
+      else
+        throw new Error("Unknown self test option " + args[i]);
+    }
+
+    for (String backend : new String[] { "java", "bitslice" }) {
+      for (String[] vector : VECTORS)
+        knownAnswer(backend, vector);
+      crossCheck(backend, rounds);
+    }
+
+    for (Padding padding : new Padding[] { Padding.CTS, Padding.PKCS7, Padding.ZERO })
+      containerBoundary(padding);
+
+    if (failures > 0)
+      throw new Error("Self test failed, " + failures + " checks differ");
+    System.out.println("self test passed");
+  }
+
+  /**
+   * Encrypts the plaintext of the vector, once block by block and once as a
+   * batch of 64 copies, and decrypts the ciphertext back
+   */
+  private static void knownAnswer(String backend, String[] vector) throws GeneralSecurityException {
+    HexFormat hex = HexFormat.of();
+    String algorithm = vector[0];
+    byte[] key = hex.parseHex(vector[1]), plain = hex.parseHex(vector[2]), cipher = hex.parseHex(vector[3]);
+    String name = backend + " " + algorithm + " " + vector[1];
+
+    check(name + " encrypt", process(backend, algorithm, key, Cipher.ENCRYPT_MODE, plain), cipher);
+    check(name + " decrypt", process(backend, algorithm, key, Cipher.DECRYPT_MODE, cipher), plain);
+
+    byte[] batch = repeat(plain, BitslicedDes.BATCH), expected = repeat(cipher, BitslicedDes.BATCH);
+    byte[] out = new byte[batch.length];
+    engine(backend, algorithm, key, Cipher.ENCRYPT_MODE).processBlocks(batch, 0, out, 0,
+        batch.length / BlockEngine.BLOCK_SIZE);
+    check(name + " batch", out, expected);
+  }
+
+  /**
+   * Random keys and batches of 1 to 200 blocks against DES/ECB/NoPadding and
+   * DESede/ECB/NoPadding of the provider
+   */
+  private static void crossCheck(String backend, int rounds) throws GeneralSecurityException {
+    Random random = new Random(46);
+    int checked = 0;
+
+    for (int round = 0; round < rounds; round++) {
+      for (String algorithm : new String[] { "DES", "TripleDES" }) {
+        byte[] key = new byte[algorithm.equals("DES") ? 8 : 24];
+        byte[] message = new byte[(1 + random.nextInt(200)) * BlockEngine.BLOCK_SIZE];
+        random.nextBytes(key);
+        random.nextBytes(message);
+
+        for (int mode : new int[] { Cipher.ENCRYPT_MODE, Cipher.DECRYPT_MODE }) {
+          Cipher jce = Cipher.getInstance((algorithm.equals("DES") ? "DES" : "DESede") + "/ECB/NoPadding");
+          jce.init(mode, new SecretKeySpec(key, algorithm.equals("DES") ? "DES" : "DESede"));
+
+          byte[] out = new byte[message.length];
+          engine(backend, algorithm, key, mode).processBlocks(message, 0, out, 0,
+              message.length / BlockEngine.BLOCK_SIZE);
+          check(backend + " " + algorithm + " random " + round, out, jce.doFinal(message));
+          checked++;
+        }
+      }
+    }
+
+    System.out.println(backend + " cross checked " + checked + " batches against JCE");
+  }
+
+  /**
+   * Writes containers of lengths just below, at and after the end of a chunk
+   * and reads them back whole and from the last chunk. A CTS tail shorter than
+   * a block is stolen into the chunk before it, a CTS message shorter than a
+   * block is rejected without leaving a file behind.
+   */
+  private static void containerBoundary(Padding padding)
+      throws GeneralSecurityException, IOException, InterruptedException {
+    Random random = new Random(17);
+    byte[] key = "containerkey".getBytes(FileIO.ISO_8859_1), iv = new byte[8];
+    Path input = Files.createTempFile("selftest", ".in"), output = Files.createTempFile("selftest", ".des");
+    Path decrypted = Files.createTempFile("selftest", ".out");
+
+    try {
+      for (int chunks = 1; chunks <= 3; chunks++) {
+        for (int extra = -8; extra <= 9; extra++) {
+          int length = chunks * CONTAINER_CHUNK + extra;
+          if (padding == Padding.CTS && length < BlockEngine.BLOCK_SIZE)
+            continue;
+
+          byte[] message = new byte[length];
+          random.nextBytes(message);
+          /* zero padding loses trailing zeros */
+          if (length > 0)
+            message[length - 1] = 1;
+          Files.write(input, message);
+
+          String name = "container " + padding + " " + length;
+          CipherContainer.encrypt(input, output, key, iv, "DES", "CBC", padding, CONTAINER_CHUNK,
+              ForkJoinPool.commonPool());
+          CipherContainer.decrypt(output, decrypted, key, ForkJoinPool.commonPool());
+          check(name, Files.readAllBytes(decrypted), message);
+
+          try (CipherContainer.Reader reader = new CipherContainer.Reader(output, key)) {
+            int from = Math.max(0, length - CONTAINER_CHUNK / 2);
+            check(name + " range", reader.read(from, length), Arrays.copyOfRange(message, from, length));
+          }
+        }
+      }
+
+      if (padding == Padding.CTS) {
+        Files.write(input, new byte[3]);
+        Files.deleteIfExists(output);
+        try {
+          CipherContainer.encrypt(input, output, key, iv, "DES", "CBC", padding, CONTAINER_CHUNK,
+              ForkJoinPool.commonPool());
+          check("container CTS 3 rejected", false);
+        } catch (IllegalBlockSizeException e) {
+          check("container CTS 3 no output", !Files.exists(output));
+        }
+      }
+    } finally {
+      Files.deleteIfExists(input);
+      Files.deleteIfExists(output);
+      Files.deleteIfExists(decrypted);
+    }
+
+    System.out.println("container " + padding + " checked around the chunk boundary");
+  }
+
+  private static byte[] process(String backend, String algorithm, byte[] key, int mode, byte[] in)
+      throws GeneralSecurityException {
+    BlockEngine engine = engine(backend, algorithm, key, mode);
+    byte[] out = new byte[in.length];
+    for (int i = 0; i < in.length; i += BlockEngine.BLOCK_SIZE)
+      engine.processBlock(in, i, out, i);
+
+    return out;
+  }
+
+  private static BlockEngine engine(String backend, String algorithm, byte[] key, int mode)
+      throws GeneralSecurityException {
+    return backend.equals("bitslice") ? new BitslicedDes(algorithm, key, mode) : new DesEngine(algorithm, key, mode);
+  }
+
+  private static byte[] repeat(byte[] block, int times) {
+    byte[] ret = new byte[block.length * times];
+    for (int i = 0; i < times; i++)
+      System.arraycopy(block, 0, ret, i * block.length, block.length);
+
+    return ret;
+  }
+
+  private static void check(String name, byte[] actual, byte[] expected) {
+    check(name, Arrays.equals(actual, expected));
+  }
+
+  private static void check(String name, boolean passed) {
+    if (passed)
+      return;
+
+    failures++;
+    System.out.println("FAIL " + name);
+  }
+}
@@ -0,0 +1,180 @@
+/**
+ * @author Canberk Aslan
+ * Concurrent facade for embedding the cipher in a service. Requests are run on
+ * virtual threads when the JDK has them (21 and later), otherwise on a pool
+ * with one thread per core. A semaphore caps the number of requests running at
+ * the same time. On virtual threads the waiting requests take their permit on
+ * their own thread, which does not hold a platform thread. On a pool the
+ * permit is taken by the submitting thread before the request is queued, so
+ * the pool threads never block on it and the queue stays bounded.
+ * Every request gives its engines back to the shared EngineCache when it is
+ * done, so many short requests share a few initialized engines per key.
+ */
+
+import java.security.GeneralSecurityException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class CipherService implements AutoCloseable {
+  public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+
+  private final ExecutorService executor;
+  private final boolean ownsExecutor;
+  /* requests take their permit on the executor instead of the submitting thread */
+  private final boolean virtualThreads;
+  private final Semaphore permits;
+
+  /**
+   * Service on its own executor
+   *
+   * @param maxInFlight maximum number of requests running at the same time
+   */
+  public CipherService(int maxInFlight) {
+    this(newVirtualExecutor(), maxInFlight, true);
+  }
+
+  public CipherService() {
+    this(DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  /**
+   * Service on an executor owned by the caller, close does not shut it down.
+   * Permits are taken by the submitting thread since the executor may run on
+   * platform threads.
+   *
+   * @param executor
+   * @param maxInFlight
+   */
+  public CipherService(ExecutorService executor, int maxInFlight) {
+    this(Objects.requireNonNull(executor), maxInFlight, false);
+  }
+
+  /**
+   * An owned executor is null when the JDK has no virtual threads, the
+   * service then creates its pool
+   */
+  private CipherService(ExecutorService executor, int maxInFlight, boolean ownsExecutor) {
+    if (maxInFlight < 1)
+      throw new IllegalArgumentException("At least one request should be allowed in flight");
+
+    this.executor = executor != null ? executor : newPool();
+    this.ownsExecutor = ownsExecutor;
+    this.virtualThreads = ownsExecutor && executor != null;
+    this.permits = new Semaphore(maxInFlight);
+  }
+
+  public CompletableFuture<byte[]> encryptAsync(byte[] message, byte[] key, byte[] iv, byte[] nonce,
+      String algorithm, CipherMode mode) {
+    return submit(message, key, iv, nonce, algorithm, mode, Direction.ENCRYPT);
+  }
+
+  public CompletableFuture<byte[]> decryptAsync(byte[] message, byte[] key, byte[] iv, byte[] nonce,
+      String algorithm, CipherMode mode) {
+    return submit(message, key, iv, nonce, algorithm, mode, Direction.DECRYPT);
+  }
+
+  /**
+   * Runs the request through CipherController on the executor. Cipher errors
+   * complete the future exceptionally with the original exception. Without
+   * virtual threads the call waits for a permit before it returns.
+   *
+   * @return future of the encrypted/decrypted data
+   */
+  public CompletableFuture<byte[]> submit(byte[] message, byte[] key, byte[] iv, byte[] nonce, String algorithm,
+      CipherMode mode, Direction direction) {
+    CompletableFuture<byte[]> future = new CompletableFuture<>();
+    if (!virtualThreads && !acquire(future))
+      return future;
+
+    try {
+      executor.execute(() -> {
+        if (virtualThreads && !acquire(future))
+          return;
+
+        try {
+          future.complete(CipherController.run(message, key, iv, nonce, algorithm, mode, direction));
+        } catch (GeneralSecurityException | RuntimeException e) {
+          future.completeExceptionally(e);
+        } finally {
+          SimpleCipher.releaseThreadEngines();
+          permits.release();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      if (!virtualThreads)
+        permits.release();
+      future.completeExceptionally(e);
+    }
+
+    return future;
+  }
+
+  /**
+   * Waits for a permit, an interrupted wait fails the future
+   *
+   * @return true if the permit was taken
+   */
+  private boolean acquire(CompletableFuture<byte[]> future) {
+    try {
+      permits.acquire();
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.completeExceptionally(e);
+      return false;
+    }
+  }
+
+  /**
+   * Number of requests that can start right now
+   */
+  public int availablePermits() {
+    return permits.availablePermits();
+  }
+
+  /**
+   * Stops accepting requests and waits for the running ones, an executor given
+   * by the caller is left running. If the wait is interrupted the interrupt
+   * flag is set again and close returns.
+   */
+  @Override
+  public void close() {
+    if (!ownsExecutor)
+      return;
+
+    executor.shutdown();
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Virtual thread per task executor if the JDK has one, null otherwise. It is
+   * looked up reflectively so the code still compiles and runs on JDK 17.
+   */
+  private static ExecutorService newVirtualExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Pool with a thread per core for JDKs without virtual threads
+   */
+  private static ExecutorService newPool() {
+    return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+      Thread thread = new Thread(runnable, "cipher-service");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+}
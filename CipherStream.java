@@ -0,0 +1,341 @@
+/**
+ * @author Canberk Aslan
+ * Streaming encryption/decryption pipeline. Instead of reading the whole file
+ * into memory, the input is consumed in fixed size chunks, every chunk is fed
+ * through the chosen mode of operation and written to the output right away.
+ * A single mode instance is fed chunk after chunk with update, so the chaining
+ * state (previous cipher block, feedback register, counter) is carried from one
+ * chunk to the next and the output is identical to the whole-file run.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+
+public class CipherStream {
+  public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+  protected static final int BLOCK_SIZE = 8;
+
+  private final byte[] key;
+  private final byte[] iv;
+  private final byte[] nonce;
+  private final String algorithm;
+  private final String mode;
+  private final boolean encrypt;
+  private final int chunkSize;
+  private final Padding padding;
+
+  /* CTR with the 64 bit counter of CipherCTR.wide, the nonce is its iv */
+  private boolean wideCounter;
+
+  /* mode instance holding the chaining state, created on first use */
+  private SimpleCipher cipher;
+
+  /* number of trailing zero bytes held back while decrypting */
+  private long pendingZeros;
+
+  /**
+   * Creates a stream pipeline for the given mode, chunk size is rounded down to
+   * a multiple of the block size
+   *
+   * @param key
+   * @param iv
+   * @param nonce
+   * @param algorithm
+   * @param mode
+   * @param type
+   * @param chunkSize
+   * @param padding
+   */
+  public CipherStream(byte[] key, byte[] iv, byte[] nonce, String algorithm, String mode, String type,
+      int chunkSize, Padding padding) {
+    if (chunkSize < BLOCK_SIZE)
+      throw new IllegalArgumentException("Chunk size should be at least " + BLOCK_SIZE + " bytes");
+
+    this.key = key;
+    this.iv = iv;
+    this.nonce = nonce;
+    this.algorithm = algorithm;
+    this.mode = mode;
+    this.encrypt = type.equals("enc");
+    this.chunkSize = chunkSize - (chunkSize % BLOCK_SIZE);
+    this.padding = padding;
+  }
+
+  public CipherStream(byte[] key, byte[] iv, byte[] nonce, String algorithm, String mode, String type,
+      int chunkSize) {
+    this(key, iv, nonce, algorithm, mode, type, chunkSize, Padding.ZERO);
+  }
+
+  public CipherStream(byte[] key, byte[] iv, byte[] nonce, String algorithm, String mode, String type,
+      Padding padding) {
+    this(key, iv, nonce, algorithm, mode, type, DEFAULT_CHUNK_SIZE, padding);
+  }
+
+  public CipherStream(byte[] key, byte[] iv, byte[] nonce, String algorithm, String mode, String type) {
+    this(key, iv, nonce, algorithm, mode, type, DEFAULT_CHUNK_SIZE, Padding.ZERO);
+  }
+
+  public long run(ReadableByteChannel in, WritableByteChannel out) throws IOException, NoSuchAlgorithmException,
+      NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    return run(Channels.newInputStream(in), Channels.newOutputStream(out));
+  }
+
+  /**
+   * Reads the input chunk by chunk, encrypts/decrypts every chunk and writes it
+   * to the output. Only the last chunk can be shorter than the chunk size, so
+   * padding is applied and removed only once at the very end. While decrypting
+   * with zero padding, trailing zero bytes are held back until a non zero byte
+   * follows them and dropped at the end of the stream.
+   *
+   * @param in
+   * @param out
+   * @return number of bytes written to the output
+   * @throws IOException
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   */
+  public long run(InputStream in, OutputStream out) throws IOException, NoSuchAlgorithmException,
+      NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    CipherMetrics.Operation operation = CipherMetrics.begin(algorithm, mode, encrypt ? "enc" : "dec");
+    operation.enter(CipherMetrics.Phase.SETUP);
+    long total = 0;
+
+    try {
+      SimpleCipher cipher = cipher();
+      /* the cipher can hold back up to two blocks which are written with a later chunk */
+      byte[] buffer = new byte[chunkSize], result = new byte[chunkSize + 2 * BLOCK_SIZE];
+      long written = 0;
+      int read;
+
+      /* every full chunk is a multiple of the block size, only the last call has to pad */
+      do {
+        operation.enter(CipherMetrics.Phase.IO);
+        read = in.readNBytes(buffer, 0, chunkSize);
+        total += read;
+        operation.enter(CipherMetrics.Phase.CIPHER);
+        int length = read == chunkSize ? cipher.update(buffer, 0, read, result, 0)
+            : cipher.doFinal(buffer, 0, read, result, 0);
+        if (encrypt || padding != Padding.ZERO) {
+          operation.enter(CipherMetrics.Phase.IO);
+          written += write(out, result, length);
+        } else {
+          operation.enter(CipherMetrics.Phase.UNPAD);
+          written += writeStripped(out, result, length);
+        }
+      } while (read == chunkSize);
+
+      operation.enter(CipherMetrics.Phase.IO);
+      out.flush();
+      return written;
+    } finally {
+      operation.end(total);
+    }
+  }
+
+  /**
+   * Uses the 64 bit counter of CipherCTR.wide for CTR, has to be set before
+   * the first chunk
+   *
+   * @param wideCounter
+   */
+  public void setWideCounter(boolean wideCounter) {
+    this.wideCounter = wideCounter;
+  }
+
+  public boolean isEncrypt() {
+    return encrypt;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public String getAlgorithm() {
+    return algorithm;
+  }
+
+  public String getMode() {
+    return mode;
+  }
+
+  /**
+   * Length of the output for an input of the given length. While decrypting
+   * anything but zero padding it is an upper bound, the exact length is known
+   * after the last block.
+   */
+  public long outputLength(long length) {
+    long partial = length % BLOCK_SIZE;
+
+    if (padding == Padding.ZERO)
+      return partial == 0 ? length : length + BLOCK_SIZE - partial;
+    if (padding == Padding.PKCS7 && encrypt)
+      return length - partial + BLOCK_SIZE;
+
+    return length;
+  }
+
+  public Padding getPadding() {
+    return padding;
+  }
+
+  /**
+   * Runs a chunk through the mode of operation, the chaining state and the
+   * blocks held back for the padding stay in the mode for the following chunk.
+   * The last call has to be made with last set, it applies/removes the padding.
+   * The result is written to out which needs room for length plus two blocks.
+   *
+   * @return number of bytes written to out
+   */
+  int cryptChunk(byte[] in, int length, byte[] out, boolean last) throws NoSuchAlgorithmException,
+      NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    SimpleCipher cipher = cipher();
+    return last ? cipher.doFinal(in, 0, length, out, 0) : cipher.update(in, 0, length, out, 0);
+  }
+
+  /**
+   * Same as cryptChunk on arrays for buffers, the chunk between the position and the
+   * limit of in is written to out at its position without copying it to the
+   * heap
+   *
+   * @return number of bytes written to out
+   */
+  int cryptChunk(ByteBuffer in, ByteBuffer out, boolean last) throws NoSuchAlgorithmException,
+      NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    SimpleCipher cipher = cipher();
+    return last ? cipher.doFinal(in, out) : cipher.update(in, out);
+  }
+
+  /**
+   * True if a chunk can be processed knowing only its position and the block
+   * before it: ECB and CTR in both directions, CBC and CFB while decrypting.
+   * Ciphertext stealing spans the last two blocks so it is not included.
+   */
+  boolean hasIndependentChunks() {
+    if (padding == Padding.CTS)
+      return false;
+
+    return mode.equals("ECB") || mode.equals("CTR")
+        || (!encrypt && (mode.equals("CBC") || mode.equals("CFB")));
+  }
+
+  /**
+   * Creates a mode instance for the chunk at the given byte position, for
+   * chunks of hasIndependentChunks modes. CTR starts at the counter of the
+   * position, CBC and CFB decryption use the last ciphertext block before the
+   * chunk as iv (null for the first chunk). Only the last chunk is padded, the
+   * others are whole blocks and go through doFinal without padding.
+   *
+   * @param position
+   * @param previous
+   * @param last
+   * @return initialized mode instance
+   */
+  SimpleCipher chunkCipher(long position, byte[] previous, boolean last)
+      throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+    byte[] chainIv = previous == null ? iv : previous;
+    SimpleCipher chunkCipher;
+
+    if (mode.equals("CBC"))
+      chunkCipher = new CipherCBC(key, chainIv, algorithm);
+    else if (mode.equals("CFB"))
+      chunkCipher = new CipherCFB(key, chainIv, algorithm);
+    else if (mode.equals("CTR")) {
+      CipherCTR ctr = counterCipher();
+      ctr.ctr = ctr.counterAt(position / BLOCK_SIZE);
+      chunkCipher = ctr;
+    } else
+      chunkCipher = new CipherECB(key, algorithm);
+
+    chunkCipher.setPadding(last ? padding : Padding.NONE);
+    chunkCipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE);
+    return chunkCipher;
+  }
+
+  /**
+   * Writes a result of cryptChunk, while decrypting with zero padding the
+   * trailing zeros are held back the same way run does
+   *
+   * @return number of bytes written
+   */
+  long writeResult(OutputStream out, byte[] data, int length) throws IOException {
+    return encrypt || padding != Padding.ZERO ? write(out, data, length) : writeStripped(out, data, length);
+  }
+
+  /**
+   * Creates and initializes the mode instance on first use
+   */
+  private SimpleCipher cipher() throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+    if (cipher != null)
+      return cipher;
+
+    if (mode.equals("CBC"))
+      cipher = new CipherCBC(key, iv, algorithm);
+    else if (mode.equals("CFB"))
+      cipher = new CipherCFB(key, iv, algorithm);
+    else if (mode.equals("CTR"))
+      cipher = counterCipher();
+    else if (mode.equals("OFB"))
+      cipher = new CipherOFB(key, iv, algorithm);
+    else
+      cipher = new CipherECB(key, algorithm);
+
+    cipher.setPadding(padding);
+    cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE);
+    return cipher;
+  }
+
+  private CipherCTR counterCipher() throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+    return wideCounter ? CipherCTR.wide(key, nonce, algorithm) : new CipherCTR(key, nonce, algorithm);
+  }
+
+  private int write(OutputStream out, byte[] data, int length) throws IOException {
+    out.write(data, 0, length);
+    return length;
+  }
+
+  /**
+   * Writes the decrypted chunk without its trailing zeros, the zeros are only
+   * written once a non zero byte shows up in a following chunk. This strips the
+   * zeros at the end of the whole plaintext without keeping it in memory.
+   *
+   * @return number of bytes written
+   */
+  private long writeStripped(OutputStream out, byte[] data, int length) throws IOException {
+    int last = length - 1;
+    for (; last >= 0; last--)
+      if (data[last] != (byte) 0)
+        break;
+
+    if (last < 0) {
+      pendingZeros += length;
+      return 0;
+    }
+
+    long written = pendingZeros + last + 1;
+    byte[] zeros = new byte[(int) Math.min(pendingZeros, chunkSize)];
+    while (pendingZeros > 0) {
+      int n = (int) Math.min(zeros.length, pendingZeros);
+      out.write(zeros, 0, n);
+      pendingZeros -= n;
+    }
+
+    out.write(data, 0, last + 1);
+    pendingZeros = length - last - 1;
+    return written;
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * @author Canberk Aslan
+ * Read only channel over a CTR encrypted file that gives back the plaintext.
+ * The channel can be positioned at any byte, a read only decrypts the blocks
+ * covering the bytes it returns, so reading a small range of a large file does
+ * not walk through the blocks before it.
+ * Note that the ciphertext carries the zero padding of its last block, size()
+ * is the size of the ciphertext. With the legacy counter layout only the first
+ * 2 GiB can be read, the counter wraps there.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.NoSuchPaddingException;
+
+public class CtrSeekableChannel implements SeekableByteChannel {
+  public static final int BUFFER_SIZE = 64 * 1024;
+
+  private final SeekableByteChannel source;
+  private final CipherCTR cipherCTR;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private long position;
+
+  /**
+   * Wraps the ciphertext channel, key and nonce are normalized the same way as
+   * CipherCTR does
+   *
+   * @param source
+   * @param key
+   * @param nonce
+   * @param algorithm
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   */
+  public CtrSeekableChannel(SeekableByteChannel source, byte[] key, byte[] nonce, String algorithm)
+      throws NoSuchAlgorithmException, NoSuchPaddingException {
+    this(source, new CipherCTR(key, nonce, algorithm));
+  }
+
+  /**
+   * Wraps the ciphertext channel with the cipher it was encrypted with, e.g. a
+   * CipherCTR.wide one
+   *
+   * @param source
+   * @param cipherCTR
+   */
+  public CtrSeekableChannel(SeekableByteChannel source, CipherCTR cipherCTR) {
+    this.source = source;
+    this.cipherCTR = cipherCTR;
+  }
+
+  /**
+   * Reads ciphertext at the current position and decrypts it into dst
+   *
+   * @return number of bytes read, -1 at the end of the file
+   */
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    if (!isOpen())
+      throw new ClosedChannelException();
+
+    int wanted = Math.min(dst.remaining(), buffer.length);
+    source.position(position);
+    int read = source.read(ByteBuffer.wrap(buffer, 0, wanted));
+    if (read <= 0)
+      return read;
+
+    try {
+      cipherCTR.cryptRange(position, buffer, 0, read, buffer, 0);
+    } catch (InvalidKeyException e) {
+      throw new IOException("Cannot decrypt with the given key", e);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Cannot decrypt at position " + position, e);
+    }
+
+    dst.put(buffer, 0, read);
+    position += read;
+    return read;
+  }
+
+  @Override
+  public int write(ByteBuffer src) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public long position() throws IOException {
+    if (!isOpen())
+      throw new ClosedChannelException();
+
+    return position;
+  }
+
+  @Override
+  public SeekableByteChannel position(long newPosition) throws IOException {
+    if (newPosition < 0)
+      throw new IllegalArgumentException("Position should not be negative");
+    if (!isOpen())
+      throw new ClosedChannelException();
+
+    position = newPosition;
+    return this;
+  }
+
+  @Override
+  public long size() throws IOException {
+    return source.size();
+  }
+
+  @Override
+  public SeekableByteChannel truncate(long size) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return source.isOpen();
+  }
+
+  @Override
+  public void close() throws IOException {
+    source.close();
+  }
+}
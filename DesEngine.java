@@ -0,0 +1,200 @@
+/**
+ * @author Canberk Aslan
+ * Table driven DES/TripleDES engine written in plain Java. The block is kept as
+ * a 64 bit long, the initial and final permutations are done with byte indexed
+ * lookup tables and every round uses combined S-box/P-box tables, so a round
+ * is eight lookups and a few xors. Subkeys are computed once in the constructor.
+ * TripleDES runs the 48 rounds back to back between a single initial and final
+ * permutation since the inner permutations cancel each other out.
+ */
+
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+public class DesEngine implements BlockEngine {
+  static final int[] IP = { 58, 50, 42, 34, 26, 18, 10, 2, 60, 52, 44, 36, 28, 20, 12, 4, 62, 54, 46, 38,
+      30, 22, 14, 6, 64, 56, 48, 40, 32, 24, 16, 8, 57, 49, 41, 33, 25, 17, 9, 1, 59, 51, 43, 35, 27, 19, 11, 3, 61,
+      53, 45, 37, 29, 21, 13, 5, 63, 55, 47, 39, 31, 23, 15, 7 };
+
+  static final int[] P = { 16, 7, 20, 21, 29, 12, 28, 17, 1, 15, 23, 26, 5, 18, 31, 10, 2, 8, 24, 14, 32,
+      27, 3, 9, 19, 13, 30, 6, 22, 11, 4, 25 };
+
+  private static final int[] PC1 = { 57, 49, 41, 33, 25, 17, 9, 1, 58, 50, 42, 34, 26, 18, 10, 2, 59, 51, 43, 35,
+      27, 19, 11, 3, 60, 52, 44, 36, 63, 55, 47, 39, 31, 23, 15, 7, 62, 54, 46, 38, 30, 22, 14, 6, 61, 53, 45, 37,
+      29, 21, 13, 5, 28, 20, 12, 4 };
+
+  private static final int[] PC2 = { 14, 17, 11, 24, 1, 5, 3, 28, 15, 6, 21, 10, 23, 19, 12, 4, 26, 8, 16, 7, 27,
+      20, 13, 2, 41, 52, 31, 37, 47, 55, 30, 40, 51, 45, 33, 48, 44, 49, 39, 56, 34, 53, 46, 42, 50, 36, 29, 32 };
+
+  private static final int[] SHIFTS = { 1, 1, 2, 2, 2, 2, 2, 2, 1, 2, 2, 2, 2, 2, 2, 1 };
+
+  static final int[][] S = {
+      { 14, 4, 13, 1, 2, 15, 11, 8, 3, 10, 6, 12, 5, 9, 0, 7, 0, 15, 7, 4, 14, 2, 13, 1, 10, 6, 12, 11, 9, 5, 3, 8,
+          4, 1, 14, 8, 13, 6, 2, 11, 15, 12, 9, 7, 3, 10, 5, 0, 15, 12, 8, 2, 4, 9, 1, 7, 5, 11, 3, 14, 10, 0, 6, 13 },
+      { 15, 1, 8, 14, 6, 11, 3, 4, 9, 7, 2, 13, 12, 0, 5, 10, 3, 13, 4, 7, 15, 2, 8, 14, 12, 0, 1, 10, 6, 9, 11, 5,
+          0, 14, 7, 11, 10, 4, 13, 1, 5, 8, 12, 6, 9, 3, 2, 15, 13, 8, 10, 1, 3, 15, 4, 2, 11, 6, 7, 12, 0, 5, 14, 9 },
+      { 10, 0, 9, 14, 6, 3, 15, 5, 1, 13, 12, 7, 11, 4, 2, 8, 13, 7, 0, 9, 3, 4, 6, 10, 2, 8, 5, 14, 12, 11, 15, 1,
+          13, 6, 4, 9, 8, 15, 3, 0, 11, 1, 2, 12, 5, 10, 14, 7, 1, 10, 13, 0, 6, 9, 8, 7, 4, 15, 14, 3, 11, 5, 2, 12 },
+      { 7, 13, 14, 3, 0, 6, 9, 10, 1, 2, 8, 5, 11, 12, 4, 15, 13, 8, 11, 5, 6, 15, 0, 3, 4, 7, 2, 12, 1, 10, 14, 9,
+          10, 6, 9, 0, 12, 11, 7, 13, 15, 1, 3, 14, 5, 2, 8, 4, 3, 15, 0, 6, 10, 1, 13, 8, 9, 4, 5, 11, 12, 7, 2, 14 },
+      { 2, 12, 4, 1, 7, 10, 11, 6, 8, 5, 3, 15, 13, 0, 14, 9, 14, 11, 2, 12, 4, 7, 13, 1, 5, 0, 15, 10, 3, 9, 8, 6,
+          4, 2, 1, 11, 10, 13, 7, 8, 15, 9, 12, 5, 6, 3, 0, 14, 11, 8, 12, 7, 1, 14, 2, 13, 6, 15, 0, 9, 10, 4, 5, 3 },
+      { 12, 1, 10, 15, 9, 2, 6, 8, 0, 13, 3, 4, 14, 7, 5, 11, 10, 15, 4, 2, 7, 12, 9, 5, 6, 1, 13, 14, 0, 11, 3, 8,
+          9, 14, 15, 5, 2, 8, 12, 3, 7, 0, 4, 10, 1, 13, 11, 6, 4, 3, 2, 12, 9, 5, 15, 10, 11, 14, 1, 7, 6, 0, 8, 13 },
+      { 4, 11, 2, 14, 15, 0, 8, 13, 3, 12, 9, 7, 5, 10, 6, 1, 13, 0, 11, 7, 4, 9, 1, 10, 14, 3, 5, 12, 2, 15, 8, 6,
+          1, 4, 11, 13, 12, 3, 7, 14, 10, 15, 6, 8, 0, 5, 9, 2, 6, 11, 13, 8, 1, 4, 10, 7, 9, 5, 0, 15, 14, 2, 3, 12 },
+      { 13, 2, 8, 4, 6, 15, 11, 1, 10, 9, 3, 14, 5, 0, 12, 7, 1, 15, 13, 8, 10, 3, 7, 4, 12, 5, 6, 11, 0, 14, 9, 2,
+          7, 11, 4, 1, 9, 12, 14, 2, 0, 6, 10, 13, 15, 3, 5, 8, 2, 1, 14, 7, 4, 10, 8, 13, 15, 12, 9, 0, 3, 5, 6, 11 } };
+
+  /* S-box output already moved to its place by the P permutation, indexed by the 6 bit input */
+  private static final int[][] SP = new int[8][64];
+  /* initial and final permutations, one table per input byte */
+  private static final long[][] IP_TABLE = new long[8][256];
+  private static final long[][] FP_TABLE = new long[8][256];
+
+  static {
+    int[] fp = new int[64];
+    for (int i = 0; i < 64; i++)
+      fp[IP[i] - 1] = i + 1;
+
+    for (int i = 0; i < 8; i++)
+      for (int b = 0; b < 256; b++) {
+        long bits = ((long) b) << (56 - 8 * i);
+        IP_TABLE[i][b] = permute(bits, 64, IP);
+        FP_TABLE[i][b] = permute(bits, 64, fp);
+      }
+
+    for (int box = 0; box < 8; box++)
+      for (int input = 0; input < 64; input++) {
+        int row = ((input >>> 4) & 0x2) | (input & 0x1);
+        int column = (input >>> 1) & 0xF;
+        long value = ((long) S[box][row * 16 + column]) << (28 - 4 * box);
+        SP[box][input] = (int) permute(value, 32, P);
+      }
+  }
+
+  /* 48 bit subkeys in the order they are used, 16 per DES pass */
+  protected final long[] subkeys;
+
+  /**
+   * Computes the subkeys for DES (8 byte key) or TripleDES (24 byte key), for
+   * decryption the subkeys are reversed
+   *
+   * @param algorithm
+   * @param key
+   * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+   * @throws InvalidKeyException
+   */
+  public DesEngine(String algorithm, byte[] key, int mode) throws InvalidKeyException {
+    boolean encrypt = mode == Cipher.ENCRYPT_MODE;
+
+    if (algorithm.equals("DES")) {
+      if (key.length < 8)
+        throw new InvalidKeyException("DES key should be 8 bytes");
+
+      subkeys = schedule(BlockEngine.readBlock(key, 0), !encrypt);
+      return;
+    }
+
+    if (key.length < 24)
+      throw new InvalidKeyException("TripleDES key should be 24 bytes");
+
+    /* encrypt with k1, decrypt with k2, encrypt with k3 and the other way round for decryption */
+    long k1 = BlockEngine.readBlock(key, 0);
+    long k2 = BlockEngine.readBlock(key, 8);
+    long k3 = BlockEngine.readBlock(key, 16);
+    subkeys = new long[48];
+    System.arraycopy(schedule(encrypt ? k1 : k3, !encrypt), 0, subkeys, 0, 16);
+    System.arraycopy(schedule(k2, encrypt), 0, subkeys, 16, 16);
+    System.arraycopy(schedule(encrypt ? k3 : k1, !encrypt), 0, subkeys, 32, 16);
+  }
+
+  @Override
+  public void processBlock(byte[] in, int inOff, byte[] out, int outOff) {
+    BlockEngine.writeBlock(processBlock(BlockEngine.readBlock(in, inOff)), out, outOff);
+  }
+
+  @Override
+  public long processBlock(long block) {
+    long permuted = lookup(IP_TABLE, block);
+    int left = (int) (permuted >>> 32), right = (int) permuted;
+
+    for (int i = 0; i < subkeys.length; i += 2) {
+      left ^= feistel(right, subkeys[i]);
+      right ^= feistel(left, subkeys[i + 1]);
+
+      /* halves are swapped after the last round of every DES pass */
+      if ((i + 2) % 16 == 0) {
+        int swap = left;
+        left = right;
+        right = swap;
+      }
+    }
+
+    return lookup(FP_TABLE, ((long) left << 32) | (right & 0xFFFFFFFFL));
+  }
+
+  @Override
+  public void destroy() {
+    Arrays.fill(subkeys, 0);
+  }
+
+  /**
+   * DES round function, expansion of the half block is done with rotations,
+   * every 6 bit group is mixed with the subkey and looked up in its SP table
+   */
+  private static int feistel(int half, long subkey) {
+    return SP[0][((Integer.rotateRight(half, 1) >>> 26) ^ (int) (subkey >>> 42)) & 0x3F]
+        | SP[1][((Integer.rotateLeft(half, 3) >>> 26) ^ (int) (subkey >>> 36)) & 0x3F]
+        | SP[2][((Integer.rotateLeft(half, 7) >>> 26) ^ (int) (subkey >>> 30)) & 0x3F]
+        | SP[3][((Integer.rotateLeft(half, 11) >>> 26) ^ (int) (subkey >>> 24)) & 0x3F]
+        | SP[4][((Integer.rotateLeft(half, 15) >>> 26) ^ (int) (subkey >>> 18)) & 0x3F]
+        | SP[5][((Integer.rotateLeft(half, 19) >>> 26) ^ (int) (subkey >>> 12)) & 0x3F]
+        | SP[6][((Integer.rotateLeft(half, 23) >>> 26) ^ (int) (subkey >>> 6)) & 0x3F]
+        | SP[7][((Integer.rotateLeft(half, 27) >>> 26) ^ (int) subkey) & 0x3F];
+  }
+
+  /**
+   * Key schedule of a single DES key, parity bits are ignored
+   *
+   * @return 16 subkeys of 48 bits, reversed if requested
+   */
+  private static long[] schedule(long key, boolean reverse) {
+    long[] ret = new long[16];
+    long permuted = permute(key, 64, PC1);
+    int c = (int) (permuted >>> 36) & 0xFFFFFFF, d = (int) (permuted >>> 8) & 0xFFFFFFF;
+
+    for (int i = 0; i < 16; i++) {
+      c = ((c << SHIFTS[i]) | (c >>> (28 - SHIFTS[i]))) & 0xFFFFFFF;
+      d = ((d << SHIFTS[i]) | (d >>> (28 - SHIFTS[i]))) & 0xFFFFFFF;
+      long cd = (((long) c << 28) | d) << 8;
+      ret[reverse ? 15 - i : i] = permute(cd, 64, PC2) >>> 16;
+    }
+
+    return ret;
+  }
+
+  /**
+   * Generic bit permutation used while building the tables. Bits are numbered
+   * from 1 starting at the most significant bit of a width bit value, the
+   * result is left aligned in a 64 bit long.
+   */
+  private static long permute(long value, int width, int[] table) {
+    long ret = 0;
+    for (int i = 0; i < table.length; i++)
+      if (((value >>> (width - table[i])) & 1) != 0)
+        ret |= 1L << (63 - i);
+
+    return width == 64 ? ret : ret >>> (64 - width);
+  }
+
+  private static long lookup(long[][] table, long block) {
+    long ret = 0;
+    for (int i = 0; i < 8; i++)
+      ret |= table[i][(int) (block >>> (56 - 8 * i)) & 0xFF];
+
+    return ret;
+  }
+}
@@ -0,0 +1,19 @@
+/**
+ * @author Canberk Aslan
+ * Direction of a cipher operation, type is the string CipherController and
+ * CipherStream take
+ */
+
+public enum Direction {
+  ENCRYPT("enc"), DECRYPT("dec");
+
+  private final String type;
+
+  Direction(String type) {
+    this.type = type;
+  }
+
+  public String getType() {
+    return type;
+  }
+}
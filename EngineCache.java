@@ -0,0 +1,181 @@
+/**
+ * @author Canberk Aslan
+ * Thread safe cache of initialized block engines. Engines are not thread safe,
+ * so a caller borrows an engine, uses it alone and releases it back. Idle
+ * engines are kept per backend, algorithm, direction and key fingerprint, the
+ * raw key is never stored. When more engines are idle than the capacity allows, the
+ * engines of the least recently used key are destroyed which clears their key
+ * schedule.
+ * The modes only differ in how the blocks are chained, so an engine serves
+ * every mode of operation and the mode is not part of the cache key. The
+ * backend is, so switching des.backend does not hand out engines of the
+ * previous one.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.NoSuchPaddingException;
+
+public class EngineCache {
+  public static final int DEFAULT_CAPACITY = 64;
+  /* system property overriding the capacity of the shared cache */
+  public static final String CAPACITY_PROPERTY = "des.engine.cache";
+
+  private static final EngineCache SHARED = new EngineCache(
+      Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+
+  private final int capacity;
+  /* iteration order is least recently used first */
+  private final LinkedHashMap<Fingerprint, ArrayDeque<BlockEngine>> idle = new LinkedHashMap<>(16, 0.75f, true);
+  private int idleCount;
+  /* bumped by clear, engines kept by threads from an earlier generation are destroyed on their next use */
+  private volatile int generation;
+
+  /**
+   * @param capacity maximum number of idle engines kept
+   */
+  public EngineCache(int capacity) {
+    if (capacity < 0)
+      throw new IllegalArgumentException("Capacity should not be negative");
+
+    this.capacity = capacity;
+  }
+
+  /**
+   * Cache shared by every cipher in the JVM
+   */
+  public static EngineCache shared() {
+    return SHARED;
+  }
+
+  /**
+   * Hands out an idle engine for the key if there is one, otherwise a new engine
+   * is created outside of the lock
+   *
+   * @param algorithm DES or TripleDES
+   * @param key
+   * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+   * @return engine owned by the caller until it is released
+   * @throws InvalidKeyException
+   */
+  public BlockEngine borrow(String algorithm, byte[] key, int mode) throws InvalidKeyException {
+    Fingerprint fingerprint = new Fingerprint(algorithm, key, mode, BlockEngine.backend());
+
+    synchronized (this) {
+      ArrayDeque<BlockEngine> engines = idle.get(fingerprint);
+      if (engines != null && !engines.isEmpty()) {
+        idleCount--;
+        BlockEngine engine = engines.pop();
+        if (engines.isEmpty())
+          idle.remove(fingerprint);
+        CipherMetrics.engineReused();
+        return engine;
+      }
+    }
+
+    try {
+      long start = System.nanoTime();
+      BlockEngine engine = BlockEngine.create(algorithm, key, mode);
+      CipherMetrics.keySetup(algorithm, System.nanoTime() - start);
+      return engine;
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+      throw new InvalidKeyException("No cipher available for " + algorithm, e);
+    }
+  }
+
+  /**
+   * Gives the engine back, algorithm, key and mode should be the ones it was
+   * borrowed with. Engines over the capacity are destroyed.
+   *
+   * @param algorithm
+   * @param key
+   * @param mode
+   * @param engine
+   */
+  public void release(String algorithm, byte[] key, int mode, BlockEngine engine) {
+    Fingerprint fingerprint = new Fingerprint(algorithm, key, mode, BlockEngine.backendOf(engine));
+
+    synchronized (this) {
+      idle.computeIfAbsent(fingerprint, f -> new ArrayDeque<>()).push(engine);
+      idleCount++;
+
+      Iterator<Map.Entry<Fingerprint, ArrayDeque<BlockEngine>>> eldest = idle.entrySet().iterator();
+      while (idleCount > capacity) {
+        ArrayDeque<BlockEngine> engines = eldest.next().getValue();
+        idleCount -= engines.size();
+        eldest.remove();
+
+        for (BlockEngine evicted : engines)
+          evicted.destroy();
+      }
+    }
+  }
+
+  /**
+   * Destroys every idle engine. Engines kept by threads (see
+   * SimpleCipher.engine) can be in use, so they are destroyed by their thread
+   * the next time it asks for an engine.
+   */
+  public synchronized void clear() {
+    for (ArrayDeque<BlockEngine> engines : idle.values())
+      for (BlockEngine engine : engines)
+        engine.destroy();
+
+    idle.clear();
+    idleCount = 0;
+    generation++;
+  }
+
+  /**
+   * Number of clear calls so far, engines borrowed before the last clear should
+   * be destroyed instead of released
+   */
+  public int generation() {
+    return generation;
+  }
+
+  public synchronized int size() {
+    return idleCount;
+  }
+
+  /**
+   * SHA-256 of the backend, algorithm, direction and key, identifies the
+   * engine without keeping the key itself
+   */
+  private static final class Fingerprint {
+    private final byte[] digest;
+    private final int hash;
+
+    Fingerprint(String algorithm, byte[] key, int mode, String backend) {
+      try {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        sha256.update((backend + " " + algorithm).getBytes(StandardCharsets.UTF_8));
+        sha256.update((byte) mode);
+        sha256.update(key);
+        this.digest = sha256.digest();
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("SHA-256 is not available", e);
+      }
+
+      this.hash = Arrays.hashCode(digest);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Fingerprint && Arrays.equals(digest, ((Fingerprint) other).digest);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
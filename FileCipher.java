@@ -6,8 +6,16 @@
  */
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -24,9 +32,12 @@ public class FileCipher {
    * @throws InvalidKeyException
    * @throws IllegalBlockSizeException
    * @throws BadPaddingException
+   * @throws GeneralSecurityException
+   * @throws InterruptedException
    */
   public static void main(String[] args) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException,
-      InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+      InvalidKeyException, IllegalBlockSizeException, BadPaddingException, GeneralSecurityException,
+      InterruptedException {
     if (!validateArguments(args))
       throw new Error("Bad command line arguments");
 
@@ -37,30 +48,76 @@ public class FileCipher {
         inputFile = args[2],
         outputFile = args[4],
         keyFile = args[7],
+        io = option(args, "-io", "stream"),
         keys[] = FileIO.readKeysFromFile(keyFile);
 
+    System.setProperty(BlockEngine.BACKEND_PROPERTY, option(args, "-backend", "jce"));
+    CipherMetrics.Counters counters = new CipherMetrics.Counters();
+    if (option(args, "-metrics", "off").equals("on"))
+      CipherMetrics.setRegistry(counters);
+
     byte[] iv = keys[0].getBytes(FileIO.ISO_8859_1),
         key = keys[1].getBytes(FileIO.ISO_8859_1),
-        nonce = keys[2].getBytes(FileIO.ISO_8859_1),
-        message = FileIO.readMessageFromFile(inputFile);
+        nonce = keys[2].getBytes(FileIO.ISO_8859_1);
 
+    /* the file is streamed chunk by chunk so memory usage does not depend on its size */
+    Padding padding = Padding.of(option(args, "-p", "zero"));
+    int chunkSize = (int) parseSize(option(args, "-chunk", String.valueOf(CipherStream.DEFAULT_CHUNK_SIZE)));
+    CipherStream cipherStream = new CipherStream(key, iv, nonce, algorithmNormalized, mode, type, chunkSize, padding);
+    cipherStream.setWideCounter(option(args, "-ctr", "legacy").equals("wide"));
     long start = System.currentTimeMillis(), finish;
-    byte[] result = CipherController.run(message, key, iv, nonce, algorithmNormalized, mode, type);
+    if (option(args, "-f", "raw").equals("container"))
+      runContainer(Paths.get(inputFile), Paths.get(outputFile), key, algorithmNormalized, mode, type, padding,
+          cipherStream.getChunkSize());
+    else if (io.equals("mmap"))
+      MappedFileCipher.run(Paths.get(inputFile), Paths.get(outputFile), cipherStream);
+    else if (io.equals("pipeline"))
+      try (InputStream in = Files.newInputStream(Paths.get(inputFile));
+          OutputStream out = Files.newOutputStream(Paths.get(outputFile))) {
+        new PipelinedFileCipher(cipherStream,
+            Integer.parseInt(option(args, "-depth", String.valueOf(PipelinedFileCipher.DEFAULT_DEPTH))),
+            Integer.parseInt(option(args, "-workers", "1"))).run(in, out);
+      }
+    else
+      try (InputStream in = Files.newInputStream(Paths.get(inputFile));
+          OutputStream out = Files.newOutputStream(Paths.get(outputFile))) {
+        cipherStream.run(in, out);
+      }
     finish = System.currentTimeMillis();
 
-    FileIO.writeMessageToFile(outputFile, type == "enc" ? result : removePadding(result));
     FileIO.appendLog(inputFile + " " + outputFile + " " + type + " " + algorithm + " " + mode + " " + (finish - start));
+
+    if (CipherMetrics.getRegistry() == counters)
+      System.out.println(counters.report());
   }
 
   /**
    * Validates arguments. Maybe this wasn't necessary but I felt like it is better
    * to have some validation than being sorry.
+   * Optional arguments can follow the required ones as pairs, e.g. -io mmap
    * 
    * @param args
    * @return true if arguments are valid, false otherwise
    */
   public static boolean validateArguments(String[] args) {
-    return (args.length == 8 && args[1].equals("-i") && args[3].equals("-o")
+    if (args.length < 8 || (args.length - 8) % 2 != 0)
+      return false;
+
+    for (int i = 8; i < args.length; i += 2)
+      if (!(args[i].equals("-io")
+          && (args[i + 1].equals("stream") || args[i + 1].equals("mmap") || args[i + 1].equals("pipeline")))
+          && !(args[i].equals("-chunk") && args[i + 1].matches("[0-9]{1,9}[KkMm]?")
+              && parseSize(args[i + 1]) >= 8 && parseSize(args[i + 1]) <= 1 << 30)
+          && !(args[i].equals("-depth") && args[i + 1].matches("[0-9]{1,4}") && Integer.parseInt(args[i + 1]) >= 2)
+          && !(args[i].equals("-workers") && args[i + 1].matches("[1-9][0-9]{0,3}"))
+          && !(args[i].equals("-backend") && BlockEngine.isBackend(args[i + 1]))
+          && !(args[i].equals("-p") && isPadding(args[i + 1]))
+          && !(args[i].equals("-f") && (args[i + 1].equals("raw") || args[i + 1].equals("container")))
+          && !(args[i].equals("-ctr") && (args[i + 1].equals("legacy") || args[i + 1].equals("wide")))
+          && !(args[i].equals("-metrics") && (args[i + 1].equals("on") || args[i + 1].equals("off"))))
+        return false;
+
+    return (args[1].equals("-i") && args[3].equals("-o")
         && (args[0].equals("-e") || args[0].equals("-d"))
         && (args[5].equals("DES") || args[5].equals("3DES"))
         && (args[6].equals("CBC") || args[6].equals("CFB")
@@ -68,23 +125,68 @@ public class FileCipher {
   }
 
   /**
-   * Since not all the blocks can be fit into 64 bit, we might use padding at the
-   * end with 0's.
-   * This method is responsible for removing them from the end of the plaintext
+   * Writes/reads the chunked container format. A new container gets a random
+   * iv which is stored in its header, the iv and nonce of the key file are not
+   * used. The chunk size only matters for encryption, decryption takes it from
+   * the header. Chunks are processed on the common fork join pool.
+   *
+   * @throws IOException
+   * @throws GeneralSecurityException
+   * @throws InterruptedException
+   */
+  public static void runContainer(Path input, Path output, byte[] key, String algorithm, String mode, String type,
+      Padding padding, int chunkSize) throws IOException, GeneralSecurityException, InterruptedException {
+    if (type.equals("enc")) {
+      byte[] iv = new byte[CipherContainer.BLOCK_SIZE];
+      new SecureRandom().nextBytes(iv);
+      CipherContainer.encrypt(input, output, key, iv, algorithm, mode, padding, chunkSize,
+          ForkJoinPool.commonPool());
+      return;
+    }
+
+    try (CipherContainer.Reader reader = new CipherContainer.Reader(input, key)) {
+      if (!reader.getAlgorithm().equals(algorithm) || !reader.getMode().equals(mode))
+        throw new Error("Container was written with " + reader.getAlgorithm() + " " + reader.getMode());
+    }
+
+    CipherContainer.decrypt(input, output, key, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Padding names are zero, pkcs7, none and cts, every mode takes all of them
+   *
+   * @param padding
+   * @return true if the padding name is known
+   */
+  public static boolean isPadding(String padding) {
+    return padding.equals("zero") || padding.equals("pkcs7") || padding.equals("none") || padding.equals("cts");
+  }
+
+  /**
+   * Returns the value of an optional argument or the fallback if it is not given
    * 
-   * @param plainText
-   * @return plaintext with removed paddings
+   * @param args
+   * @param name
+   * @param fallback
+   * @return value of the option
    */
-  public static byte[] removePadding(byte[] plainText) {
-    int i = plainText.length - 1;
-    for (; i >= 0; i--)
-      if (plainText[i] != (byte) 0)
-        break;
+  public static String option(String[] args, String name, String fallback) {
+    for (int i = 8; i + 1 < args.length; i += 2)
+      if (args[i].equals(name))
+        return args[i + 1];
 
-    byte[] ret = new byte[i + 1];
-    for (i = 0; i < ret.length; i++)
-      ret[i] = plainText[i];
+    return fallback;
+  }
 
-    return ret;
+  /**
+   * Parses sizes like 64, 16K, 1M or 1G
+   *
+   * @return size in bytes
+   */
+  public static long parseSize(String size) {
+    char unit = Character.toUpperCase(size.charAt(size.length() - 1));
+    int shift = unit == 'K' ? 10 : unit == 'M' ? 20 : unit == 'G' ? 30 : 0;
+    String digits = shift == 0 ? size : size.substring(0, size.length() - 1);
+    return Long.parseLong(digits) << shift;
   }
 }
@@ -2,20 +2,15 @@
 /**
  * @author Canberk Aslan
  * This class responsible for Input/Output operations
- * throught the lifecycle of the program. It handles, appending or creating new log,
- * writing/reading message from file as well as reading keys.
+ * throught the lifecycle of the program. It handles, appending or creating new log
+ * as well as reading keys.
  */
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
 
 public class FileIO {
@@ -31,38 +26,15 @@ public class FileIO {
   /**
    * If the run.log file doesn't exists, creates a new log file,
    * it it does, appends the log at the end of the file.
+   * The line is queued on the shared LogAppender and written by its flusher, so
+   * lines from batch workers do not interleave and the caller does not wait
+   * for the file.
    * 
    * @param log
    * @throws IOException
    */
   public static void appendLog(String log) throws IOException {
-    byte[] append = (log + System.lineSeparator()).getBytes(UTF_8);
-    Files.write(Paths.get("run.log"), append, StandardOpenOption.APPEND, StandardOpenOption.CREATE);
-  }
-
-  /**
-   * Writes the encrypted/decrypted message to the file
-   * 
-   * @param filename
-   * @param message
-   * @throws IOException
-   */
-  public static void writeMessageToFile(String filename, byte[] message) throws IOException {
-    OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(filename), ISO_8859_1);
-    writer.write(new String(message, ISO_8859_1));
-    writer.close();
-  }
-
-  /**
-   * Reads the encrypted/decrypted message from the file
-   * 
-   * @param filename
-   * @return
-   * @throws IOException
-   */
-  public static byte[] readMessageFromFile(String filename) throws IOException {
-    File file = new File(filename);
-    return Files.readString(file.toPath(), ISO_8859_1).getBytes(ISO_8859_1);
+    LogAppender.shared().append(log);
   }
 
   /**
@@ -0,0 +1,91 @@
+/**
+ * @author Canberk Aslan
+ * Block engine backed by the JCE provider. The cipher is initialized once with
+ * the key in ECB mode without padding, so every call to processBlock is a plain
+ * single block update on the provider and processBlocks a single update for
+ * all of its blocks.
+ */
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+public class JceBlockEngine implements BlockEngine {
+  private final Cipher cipher;
+  private final String algorithm;
+  private final int keyLength;
+  private final int mode;
+  /* scratch blocks for the long based calls, the engine is used by one thread at a time */
+  private final byte[] blockIn = new byte[BLOCK_SIZE];
+  private final byte[] blockOut = new byte[BLOCK_SIZE];
+
+  /**
+   * Creates the cipher instance and runs the key setup
+   *
+   * @param algorithm
+   * @param key
+   * @param mode
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   */
+  public JceBlockEngine(String algorithm, byte[] key, int mode)
+      throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+    SecretKey secretKey = new SecretKeySpec(key, 0, key.length, algorithm);
+    this.algorithm = algorithm;
+    this.keyLength = key.length;
+    this.mode = mode;
+    this.cipher = Cipher.getInstance(algorithm + "/ECB/NoPadding");
+    this.cipher.init(mode, secretKey);
+  }
+
+  @Override
+  public void processBlock(byte[] in, int inOff, byte[] out, int outOff) {
+    try {
+      cipher.update(in, inOff, BLOCK_SIZE, out, outOff);
+    } catch (ShortBufferException e) {
+      throw new IllegalArgumentException("Output should have room for a block at offset " + outOff, e);
+    }
+  }
+
+  /**
+   * Many blocks are a single update on the provider
+   */
+  @Override
+  public void processBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+    try {
+      cipher.update(in, inOff, blocks * BLOCK_SIZE, out, outOff);
+    } catch (ShortBufferException e) {
+      throw new IllegalArgumentException("Output should have room for " + blocks + " blocks at offset " + outOff, e);
+    }
+  }
+
+  @Override
+  public long processBlock(long block) {
+    BlockEngine.writeBlock(block, blockIn, 0);
+    processBlock(blockIn, 0, blockOut, 0);
+    return BlockEngine.readBlock(blockOut, 0);
+  }
+
+  /**
+   * The provider does not expose its key schedule, the cipher is initialized
+   * again with an all zero key so the schedule of the real key is overwritten
+   */
+  @Override
+  public void destroy() {
+    try {
+      cipher.init(mode, new SecretKeySpec(new byte[keyLength], algorithm));
+    } catch (InvalidKeyException e) {
+      /* provider refused the zero key, the cipher keeps the old schedule until collected */
+    }
+
+    Arrays.fill(blockIn, (byte) 0);
+    Arrays.fill(blockOut, (byte) 0);
+  }
+}
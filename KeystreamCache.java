@@ -0,0 +1,230 @@
+/**
+ * @author Canberk Aslan
+ * Cache of precomputed OFB/CTR keystream. The keystream only depends on the
+ * key and the iv (OFB) or the first counter block (CTR), so decrypting the same
+ * object again can skip the block cipher and only xor with the cached
+ * keystream. The keystream is kept off-heap in direct buffers of a fixed
+ * segment size, keyed by a fingerprint of mode, algorithm, key and start block
+ * and the index of the segment. When the cache is over its capacity the least
+ * recently used segments are dropped.
+ * The cached keystream decrypts everything encrypted with the same key and iv,
+ * so the cache should only be enabled where memory is trusted. The shared cache
+ * is disabled unless the des.keystream.cache property gives it a capacity.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongBinaryOperator;
+
+public class KeystreamCache {
+  public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024;
+  /* system property giving the capacity of the shared cache in bytes, 0 disables it */
+  public static final String CAPACITY_PROPERTY = "des.keystream.cache";
+
+  private static final KeystreamCache SHARED = new KeystreamCache(
+      Long.getLong(CAPACITY_PROPERTY, 0L), DEFAULT_SEGMENT_SIZE);
+
+  private final int segmentSize;
+  private final int maxSegments;
+  /* iteration order is least recently used first */
+  private final LinkedHashMap<Segment, ByteBuffer> segments = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * @param capacity maximum number of cached keystream bytes
+   * @param segmentSize bytes of keystream computed and cached at once, rounded
+   *          down to a multiple of the block size
+   */
+  public KeystreamCache(long capacity, int segmentSize) {
+    if (capacity < 0 || segmentSize < BlockEngine.BLOCK_SIZE)
+      throw new IllegalArgumentException("Capacity should not be negative and a segment should hold a block");
+
+    this.segmentSize = segmentSize - segmentSize % BlockEngine.BLOCK_SIZE;
+    this.maxSegments = (int) Math.min(Integer.MAX_VALUE, capacity / this.segmentSize);
+  }
+
+  /**
+   * Cache used by CipherOFB and CipherCTR unless another one is set
+   */
+  public static KeystreamCache shared() {
+    return SHARED;
+  }
+
+  /**
+   * A cache too small for a single segment does not cache anything
+   */
+  public boolean isEnabled() {
+    return maxSegments > 0;
+  }
+
+  /**
+   * Xors length bytes of in with the keystream of the source starting at its
+   * first block and writes them to out. Missing segments are computed in order
+   * with the source's engine and cached.
+   *
+   * @param source
+   * @param in
+   * @param out
+   * @param length multiple of the block size
+   */
+  public void xor(Source source, byte[] in, byte[] out, int length) {
+    long state = source.start;
+
+    for (int offset = 0, index = 0; offset < length; offset += segmentSize, index++) {
+      ByteBuffer keystream = get(new Segment(source.fingerprint, index));
+      if (keystream == null)
+        keystream = put(new Segment(source.fingerprint, index), generate(source, state));
+
+      XorKernel.get().xor(in, offset, keystream, 0, out, offset, Math.min(segmentSize, length - offset));
+
+      state = source.stateAfter(index, keystream.getLong(segmentSize - BlockEngine.BLOCK_SIZE));
+    }
+  }
+
+  public synchronized int size() {
+    return segments.size();
+  }
+
+  public synchronized void clear() {
+    segments.clear();
+  }
+
+  private synchronized ByteBuffer get(Segment segment) {
+    return segments.get(segment);
+  }
+
+  /**
+   * Keeps the segment, another thread may have computed it meanwhile, then
+   * its buffer is used. Least recently used segments over the capacity are
+   * dropped and freed by the garbage collector, their buffers are not reused
+   * since another thread may still be reading them.
+   */
+  private synchronized ByteBuffer put(Segment segment, ByteBuffer keystream) {
+    ByteBuffer existing = segments.putIfAbsent(segment, keystream);
+
+    Iterator<Map.Entry<Segment, ByteBuffer>> eldest = segments.entrySet().iterator();
+    while (segments.size() > maxSegments) {
+      eldest.next();
+      eldest.remove();
+    }
+
+    return existing != null ? existing : keystream;
+  }
+
+  private ByteBuffer generate(Source source, long state) {
+    ByteBuffer keystream = ByteBuffer.allocateDirect(segmentSize);
+
+    for (int i = 0; i < segmentSize; i += BlockEngine.BLOCK_SIZE) {
+      long block = source.engine.processBlock(state);
+      keystream.putLong(i, block);
+      state = source.next.applyAsLong(state, block);
+    }
+
+    return keystream;
+  }
+
+  enum Kind {
+    OFB, CTR, WIDE_CTR
+  }
+
+  /**
+   * Keystream of one key and start block. next gives the input of the
+   * following block from the current input and output: the output for OFB,
+   * the incremented counter for CTR.
+   */
+  public static class Source {
+    private final Kind kind;
+    private final long start;
+    private final BlockEngine engine;
+    private final LongBinaryOperator next;
+    private final byte[] fingerprint;
+    private final int blocksPerSegment;
+
+    private Source(Kind kind, String algorithm, byte[] key, long start, BlockEngine engine,
+        LongBinaryOperator next, int segmentSize) {
+      this.kind = kind;
+      this.start = start;
+      this.engine = engine;
+      this.next = next;
+      this.blocksPerSegment = segmentSize / BlockEngine.BLOCK_SIZE;
+
+      try {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update((kind + " " + algorithm).getBytes(StandardCharsets.UTF_8));
+        digest.update(key);
+        for (int shift = 56; shift >= 0; shift -= 8)
+          digest.update((byte) (start >>> shift));
+        this.fingerprint = digest.digest();
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("SHA-256 is not available", e);
+      }
+    }
+
+    /**
+     * Output feedback keystream starting from the iv block
+     */
+    static Source ofb(KeystreamCache cache, String algorithm, byte[] key, long iv, BlockEngine engine) {
+      return new Source(Kind.OFB, algorithm, key, iv, engine, (input, output) -> output, cache.segmentSize);
+    }
+
+    /**
+     * Counter keystream starting from the first counter block, wide for the
+     * 64 bit counter of CipherCTR.wide
+     */
+    static Source ctr(KeystreamCache cache, String algorithm, byte[] key, long counter, boolean wide,
+        BlockEngine engine) {
+      if (wide)
+        return new Source(Kind.WIDE_CTR, algorithm, key, counter, engine, (input, output) -> input + 1,
+            cache.segmentSize);
+
+      return new Source(Kind.CTR, algorithm, key, counter, engine, (input, output) -> CipherCTR.nextCounter(input),
+          cache.segmentSize);
+    }
+
+    /**
+     * Input of the first block after the segment, a cached segment does not
+     * keep its inputs: OFB continues with the last output, CTR with the counter
+     * of the block
+     */
+    private long stateAfter(int segment, long lastOutput) {
+      long blocks = (long) (segment + 1) * blocksPerSegment;
+      if (kind == Kind.WIDE_CTR)
+        return start + blocks;
+
+      return kind == Kind.OFB ? lastOutput : CipherCTR.counterAt(start, blocks);
+    }
+  }
+
+  /**
+   * Segment of a keystream, only the fingerprint of the key is kept
+   */
+  private static class Segment {
+    private final byte[] fingerprint;
+    private final int index;
+    private final int hash;
+
+    Segment(byte[] fingerprint, int index) {
+      this.fingerprint = fingerprint;
+      this.index = index;
+      this.hash = 31 * Arrays.hashCode(fingerprint) + index;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Segment))
+        return false;
+      Segment segment = (Segment) other;
+      return index == segment.index && Arrays.equals(fingerprint, segment.fingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
@@ -0,0 +1,249 @@
+/**
+ * @author Canberk Aslan
+ * Asynchronous appender for run.log. Callers only put the line on a bounded
+ * lock-free queue, a background flusher collects the queued lines and writes
+ * them to the file with one gathering FileChannel write. The flusher runs
+ * every flush interval or as soon as the queued lines reach the flush size.
+ * When the queue is full the caller either waits for the flusher (BLOCK) or
+ * the line is dropped and counted (DROP). The file is opened once and kept
+ * open, close writes whatever is still queued.
+ * A write error of the flusher is thrown from the next append/flush/close.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class LogAppender implements Closeable {
+  public enum Policy {
+    BLOCK, DROP
+  }
+
+  public static final int DEFAULT_CAPACITY = 8192;
+  public static final long DEFAULT_FLUSH_INTERVAL = 200;
+  public static final int DEFAULT_FLUSH_SIZE = 64 * 1024;
+  /* system properties configuring the shared appender */
+  public static final String CAPACITY_PROPERTY = "des.log.queue";
+  public static final String FLUSH_INTERVAL_PROPERTY = "des.log.flush.ms";
+  public static final String FLUSH_SIZE_PROPERTY = "des.log.flush.bytes";
+  public static final String POLICY_PROPERTY = "des.log.policy";
+
+  /* how long a blocked caller parks before it looks at the queue again */
+  private static final long BLOCK_WAIT = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final Path path;
+  private final int capacity;
+  private final long flushInterval;
+  private final int flushSize;
+  private final Policy policy;
+  private final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<>();
+  /* slots taken in the queue, a slot is taken before the line is offered */
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicLong queuedBytes = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread flusher;
+  private volatile boolean closed;
+  private volatile IOException failure;
+  private FileChannel channel;
+
+  /**
+   * Starts the flusher thread of a new appender
+   *
+   * @param path log file, created if it does not exist
+   * @param capacity maximum number of queued lines
+   * @param flushInterval milliseconds between two flushes
+   * @param flushSize queued bytes that trigger a flush before the interval
+   * @param policy what append does when the queue is full
+   */
+  public LogAppender(Path path, int capacity, long flushInterval, int flushSize, Policy policy) {
+    if (capacity < 1 || flushInterval < 1 || flushSize < 1)
+      throw new IllegalArgumentException("Capacity, flush interval and flush size should be positive");
+
+    this.path = path;
+    this.capacity = capacity;
+    this.flushInterval = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+    this.flushSize = flushSize;
+    this.policy = policy;
+    this.flusher = new Thread(this::runFlusher, "log-flusher");
+    this.flusher.setDaemon(true);
+    this.flusher.start();
+  }
+
+  /**
+   * Appender of run.log shared by the JVM, configured with the des.log system
+   * properties and closed by a shutdown hook
+   */
+  public static LogAppender shared() {
+    return Shared.INSTANCE;
+  }
+
+  /**
+   * Queues the line, the line separator is added
+   *
+   * @param line
+   * @return false if the line was dropped because the queue is full
+   * @throws IOException if the appender is closed or a previous write failed
+   */
+  public boolean append(String line) throws IOException {
+    checkOpen();
+    byte[] bytes = (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+
+    for (int n = queued.get();; n = queued.get()) {
+      if (n < capacity) {
+        if (queued.compareAndSet(n, n + 1))
+          break;
+        continue;
+      }
+
+      if (policy == Policy.DROP) {
+        dropped.incrementAndGet();
+        return false;
+      }
+
+      LockSupport.unpark(flusher);
+      LockSupport.parkNanos(this, BLOCK_WAIT);
+      checkOpen();
+    }
+
+    queue.offer(bytes);
+    if (queuedBytes.addAndGet(bytes.length) >= flushSize)
+      LockSupport.unpark(flusher);
+
+    /* the flusher may have finished between the check and the offer */
+    if (closed)
+      drain();
+
+    return true;
+  }
+
+  /**
+   * Writes the queued lines now
+   *
+   * @throws IOException
+   */
+  public void flush() throws IOException {
+    checkOpen();
+    drain();
+    throwFailure();
+  }
+
+  /**
+   * Number of lines dropped because the queue was full
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Stops the flusher after it wrote every queued line and closes the file
+   *
+   * @throws IOException if a write failed
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    LockSupport.unpark(flusher);
+
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      drain();
+    }
+
+    throwFailure();
+  }
+
+  private void runFlusher() {
+    while (!closed) {
+      LockSupport.parkNanos(this, flushInterval);
+      drain();
+    }
+
+    drain();
+  }
+
+  /**
+   * Takes every queued line and writes them with one gathering write, the
+   * file is closed again once the appender is closed
+   */
+  private synchronized void drain() {
+    List<ByteBuffer> batch = new ArrayList<>();
+    long bytes = 0;
+    for (byte[] line; (line = queue.poll()) != null;) {
+      batch.add(ByteBuffer.wrap(line));
+      bytes += line.length;
+    }
+
+    queued.addAndGet(-batch.size());
+    queuedBytes.addAndGet(-bytes);
+
+    try {
+      if (!batch.isEmpty() && failure == null) {
+        if (channel == null)
+          channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND,
+              StandardOpenOption.CREATE);
+
+        ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+        for (long written = 0; written < bytes;)
+          written += channel.write(buffers);
+      }
+
+      if (closed && channel != null) {
+        channel.close();
+        channel = null;
+      }
+    } catch (IOException e) {
+      failure = e;
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed)
+      throw new IOException("Log appender is closed");
+    throwFailure();
+  }
+
+  private void throwFailure() throws IOException {
+    IOException e = failure;
+    if (e != null)
+      throw new IOException("Writing " + path + " failed", e);
+  }
+
+  /**
+   * Created on first use so programs that never log do not start a flusher
+   */
+  private static class Shared {
+    private static final LogAppender INSTANCE = create();
+
+    private static LogAppender create() {
+      LogAppender appender = new LogAppender(Paths.get("run.log"),
+          Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY),
+          Long.getLong(FLUSH_INTERVAL_PROPERTY, DEFAULT_FLUSH_INTERVAL),
+          Integer.getInteger(FLUSH_SIZE_PROPERTY, DEFAULT_FLUSH_SIZE),
+          Policy.valueOf(System.getProperty(POLICY_PROPERTY, "block").toUpperCase(Locale.ROOT)));
+
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          appender.close();
+        } catch (IOException e) {
+          System.err.println(e.getMessage());
+        }
+      }, "log-shutdown"));
+      return appender;
+    }
+  }
+}
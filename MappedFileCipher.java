@@ -0,0 +1,111 @@
+/**
+ * @author Canberk Aslan
+ * Memory mapped I/O backend for large files. The input and the output files are
+ * mapped window by window with FileChannel.map and the chunks are encrypted from
+ * the input mapping straight into the output mapping, no charset conversion or
+ * whole-file copy on the heap is involved.
+ */
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+
+public class MappedFileCipher {
+  /* number of chunks mapped at once, a window is cut to the 2 GB limit of a mapping */
+  public static final int CHUNKS_PER_WINDOW = 1024;
+
+  /**
+   * Encrypts/decrypts the input file into the output file using memory mapped
+   * windows. The output is preallocated with the output length of the padding
+   * and truncated to the bytes actually written, after decryption with zero
+   * padding it is truncated to drop the trailing zeros the same way
+   * CipherStream does.
+   *
+   * @param input
+   * @param output
+   * @param cipherStream
+   * @return length of the output file
+   * @throws IOException
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   */
+  public static long run(Path input, Path output, CipherStream cipherStream) throws IOException,
+      NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException,
+      BadPaddingException {
+    CipherMetrics.Operation operation = CipherMetrics.begin(cipherStream.getAlgorithm(), cipherStream.getMode(),
+        cipherStream.isEncrypt() ? "enc" : "dec");
+    operation.enter(CipherMetrics.Phase.IO);
+    long total = 0;
+
+    try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+        FileChannel out = FileChannel.open(output, StandardOpenOption.READ, StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      int chunkSize = cipherStream.getChunkSize();
+      /* whole chunks that fit into a single mapping */
+      long windowSize = Math.min((long) chunkSize * CHUNKS_PER_WINDOW,
+          Integer.MAX_VALUE / chunkSize * (long) chunkSize);
+      long length = in.size();
+      long outputLength = cipherStream.outputLength(length);
+      long written = 0, lastNonZero = 0;
+      boolean stripZeros = !cipherStream.isEncrypt() && cipherStream.getPadding() == Padding.ZERO;
+      MappedByteBuffer target = null;
+
+      for (long position = 0; position <= length; position += windowSize) {
+        long inWindow = Math.min(windowSize, length - position);
+        MappedByteBuffer source = in.map(FileChannel.MapMode.READ_ONLY, position, inWindow);
+
+        /* one more empty chunk after the input finishes the padding */
+        boolean last = position + windowSize > length;
+        do {
+          int read = Math.min(chunkSize, source.remaining());
+          /* the cipher can hold back up to two blocks which are written with a later chunk */
+          long room = Math.min(read + 2 * CipherStream.BLOCK_SIZE, outputLength - written);
+
+          /* output does not follow the input windows when blocks are held back, it gets its own */
+          if (target == null || target.remaining() < room)
+            target = out.map(FileChannel.MapMode.READ_WRITE, written,
+                Math.min(Math.min(Math.max(windowSize, room), Integer.MAX_VALUE), outputLength - written));
+
+          /* the chunk goes from the input mapping straight into the output mapping */
+          operation.enter(CipherMetrics.Phase.CIPHER);
+          int start = target.position();
+          source.limit(source.position() + read);
+          int result = cipherStream.cryptChunk(source, target, last && source.limit() == source.capacity());
+          source.limit(source.capacity());
+
+          if (stripZeros) {
+            operation.enter(CipherMetrics.Phase.UNPAD);
+            int nonZero = result - 1;
+            for (; nonZero >= 0; nonZero--)
+              if (target.get(start + nonZero) != (byte) 0)
+                break;
+
+            if (nonZero >= 0)
+              lastNonZero = written + nonZero + 1;
+          }
+
+          operation.enter(CipherMetrics.Phase.IO);
+          written += result;
+          total += read;
+        } while (source.hasRemaining());
+      }
+
+      long finalLength = stripZeros ? lastNonZero : written;
+      out.truncate(finalLength);
+      return finalLength;
+    } finally {
+      operation.end(total);
+    }
+  }
+}
@@ -0,0 +1,24 @@
+/**
+ * @author Canberk Aslan
+ * Receiver of the cipher metrics. An implementation is installed with
+ * CipherMetrics.setRegistry and is called from every thread that encrypts or
+ * decrypts, so it has to be thread safe and should not block.
+ */
+
+public interface MetricsRegistry {
+  /**
+   * Adds delta to the counter with the given name
+   *
+   * @param name
+   * @param delta
+   */
+  void count(String name, long delta);
+
+  /**
+   * Records a duration for the timer with the given name
+   *
+   * @param name
+   * @param nanos
+   */
+  void time(String name, long nanos);
+}
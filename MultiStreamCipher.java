@@ -0,0 +1,203 @@
+/**
+ * @author Canberk Aslan
+ * Encrypts many independent messages with CBC, CFB or OFB at once. A single
+ * chain has to wait for the previous block, but the chains of different
+ * messages do not depend on each other, so up to LANES chains are advanced in
+ * lockstep: the next block of every chain is collected, the engine encrypts
+ * all of them with one processBlocks call and the results are fed back into
+ * their chains. The engine always has LANES independent blocks to work on,
+ * BitslicedDes encrypts them in a single pass and the JCE provider in a single
+ * update.
+ * Messages are sorted by length so the chains still running are always the
+ * first lanes of a group. The output of every message is the same as
+ * encrypting it alone.
+ * It only works on whole batches of messages, so it is not a SimpleCipher. The
+ * engine is borrowed from the shared EngineCache for each batch.
+ */
+
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+
+public class MultiStreamCipher {
+  /* chains advanced together, a bitsliced pass holds this many blocks */
+  public static final int LANES = 64;
+
+  private static final int BLOCK_SIZE = BlockEngine.BLOCK_SIZE;
+
+  private final CipherMode mode;
+  private final String algorithm;
+  private final byte[] key;
+  private Padding padding = Padding.ZERO;
+
+  /**
+   * @param mode CBC, CFB or OFB
+   * @param key
+   * @param algorithm DES or TripleDES
+   */
+  public MultiStreamCipher(CipherMode mode, byte[] key, String algorithm) {
+    if (mode != CipherMode.CBC && mode != CipherMode.CFB && mode != CipherMode.OFB)
+      throw new IllegalArgumentException("Only CBC, CFB and OFB chains are interleaved, not " + mode);
+
+    this.mode = mode;
+    this.algorithm = algorithm;
+    this.key = normalize(key, algorithm.equals("TripleDES") ? BLOCK_SIZE * 3 : BLOCK_SIZE);
+  }
+
+  /**
+   * Zero, PKCS#7 or no padding, ciphertext stealing is not interleaved
+   */
+  public void setPadding(Padding padding) {
+    if (padding == Padding.CTS)
+      throw new IllegalArgumentException("Ciphertext stealing is not supported for interleaved messages");
+
+    this.padding = padding;
+  }
+
+  public Padding getPadding() {
+    return padding;
+  }
+
+  /**
+   * Every message is encrypted with the same iv
+   *
+   * @return encrypted messages in the order of messages
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   */
+  public byte[][] encrypt(byte[][] messages, byte[] iv) throws InvalidKeyException, IllegalBlockSizeException {
+    byte[][] ivs = new byte[messages.length][];
+    Arrays.fill(ivs, iv);
+    return encrypt(messages, ivs);
+  }
+
+  /**
+   * Pads every message, then encrypts the messages in groups of LANES with
+   * their chains advanced together. Without padding CBC needs aligned
+   * messages and CFB/OFB cut the ciphertext to the message length.
+   *
+   * @param messages
+   * @param ivs iv of every message
+   * @return encrypted messages in the order of messages
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   */
+  public byte[][] encrypt(byte[][] messages, byte[][] ivs) throws InvalidKeyException, IllegalBlockSizeException {
+    if (ivs.length != messages.length)
+      throw new IllegalArgumentException("Every message needs an iv");
+
+    int count = messages.length;
+    byte[][] padded = new byte[count][], ret = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      padded[i] = pad(messages[i]);
+      ret[i] = new byte[padded[i].length];
+    }
+
+    Integer[] order = new Integer[count];
+    for (int i = 0; i < count; i++)
+      order[i] = i;
+    Arrays.sort(order, Comparator.comparingInt((Integer i) -> padded[i].length).reversed());
+
+    EngineCache cache = EngineCache.shared();
+    int generation = cache.generation();
+    BlockEngine engine = cache.borrow(algorithm, key, Cipher.ENCRYPT_MODE);
+    try {
+      interleave(engine, padded, ivs, order, ret);
+    } finally {
+      /* engines borrowed before a clear are not given back */
+      if (cache.generation() == generation)
+        cache.release(algorithm, key, Cipher.ENCRYPT_MODE, engine);
+      else
+        engine.destroy();
+    }
+
+    /* stream modes keep the exact length without padding */
+    if (padding == Padding.NONE)
+      for (int i = 0; i < count; i++)
+        ret[i] = Arrays.copyOf(ret[i], messages[i].length);
+
+    return ret;
+  }
+
+  /**
+   * Advances the chains of the sorted messages in groups of LANES
+   */
+  private void interleave(BlockEngine engine, byte[][] padded, byte[][] ivs, Integer[] order, byte[][] ret) {
+    int count = padded.length;
+    byte[] lanes = new byte[LANES * BLOCK_SIZE];
+    long[] chains = new long[LANES];
+
+    for (int group = 0; group < count; group += LANES) {
+      int active = Math.min(LANES, count - group);
+      for (int lane = 0; lane < active; lane++)
+        chains[lane] = BlockEngine.readBlock(normalize(ivs[order[group + lane]], BLOCK_SIZE), 0);
+
+      for (int off = 0;; off += BLOCK_SIZE) {
+        /* messages are sorted longest first, finished chains drop off the end */
+        while (active > 0 && padded[order[group + active - 1]].length <= off)
+          active--;
+        if (active == 0)
+          break;
+
+        for (int lane = 0; lane < active; lane++) {
+          long input = chains[lane];
+          if (mode == CipherMode.CBC)
+            input ^= BlockEngine.readBlock(padded[order[group + lane]], off);
+          BlockEngine.writeBlock(input, lanes, lane * BLOCK_SIZE);
+        }
+
+        engine.processBlocks(lanes, 0, lanes, 0, active);
+
+        for (int lane = 0; lane < active; lane++) {
+          int message = order[group + lane];
+          long output = BlockEngine.readBlock(lanes, lane * BLOCK_SIZE);
+
+          if (mode == CipherMode.CBC) {
+            chains[lane] = output;
+          } else if (mode == CipherMode.CFB) {
+            chains[lane] = output ^ BlockEngine.readBlock(padded[message], off);
+            output = chains[lane];
+          } else {
+            chains[lane] = output;
+            output ^= BlockEngine.readBlock(padded[message], off);
+          }
+
+          BlockEngine.writeBlock(output, ret[message], off);
+        }
+      }
+    }
+  }
+
+  private byte[] pad(byte[] message) throws IllegalBlockSizeException {
+    int partial = message.length % BLOCK_SIZE;
+
+    if (padding == Padding.PKCS7) {
+      byte[] ret = Arrays.copyOf(message, message.length + BLOCK_SIZE - partial);
+      Arrays.fill(ret, message.length, ret.length, (byte) (BLOCK_SIZE - partial));
+      return ret;
+    }
+
+    if (padding == Padding.NONE && mode == CipherMode.CBC && partial != 0)
+      throw new IllegalBlockSizeException("Message length should be a multiple of " + BLOCK_SIZE);
+
+    return partial == 0 ? message : Arrays.copyOf(message, message.length + BLOCK_SIZE - partial);
+  }
+
+  /**
+   * Repeats the bytes to n bytes, a shorter key or iv is extended the same way
+   * SimpleCipher.normalizeToNBytes does
+   */
+  private static byte[] normalize(byte[] any, int n) {
+    if (any.length == n)
+      return any;
+
+    byte[] ret = new byte[n];
+    for (int i = 0; i < n; i++)
+      ret[i] = any.length == 0 ? 0 : any[i % any.length];
+
+    return ret;
+  }
+}
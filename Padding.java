@@ -0,0 +1,26 @@
+/**
+ * @author Canberk Aslan
+ * Padding of the last block.
+ * ZERO fills the last block with zeros, it is the original format and the
+ * default, trailing zeros of the plaintext are lost when it is removed.
+ * PKCS7 appends n bytes of value n (1 to 8), so the plaintext length is exact.
+ * NONE adds nothing, block modes need aligned input, stream modes (CFB, OFB,
+ * CTR) cut the last block to the input length.
+ * CTS is ciphertext stealing, the ciphertext has the length of the plaintext
+ * which should be at least a block. CBC uses the CS3 ordering of SunJCE and
+ * ECB the same block order, the last two blocks are always swapped, also for
+ * aligned messages. Stream modes cut the last block as without padding.
+ */
+
+import java.util.Locale;
+
+public enum Padding {
+  ZERO, PKCS7, NONE, CTS;
+
+  /**
+   * Parses the command line name of a padding, e.g. pkcs7
+   */
+  public static Padding of(String name) {
+    return valueOf(name.toUpperCase(Locale.ROOT));
+  }
+}
@@ -0,0 +1,287 @@
+/**
+ * @author Canberk Aslan
+ * Pipelined I/O backend. A reader thread, one or more cipher workers and the
+ * writer (the calling thread) run at the same time, so the disk and the CPU are
+ * busy together and a large file takes about as long as the slower of the two.
+ * The stages pass a fixed ring of chunk slots around, a slot is filled by the
+ * reader, encrypted/decrypted by a worker, written and handed back to the
+ * reader. When all slots are in use the reader waits, which keeps memory at
+ * depth chunks whatever the file size is.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class PipelinedFileCipher {
+  public static final int DEFAULT_DEPTH = 8;
+
+  private final CipherStream cipherStream;
+  private final int depth;
+  private final int workers;
+
+  /* slots waiting for the reader and slots waiting for a worker */
+  private final BlockingQueue<Slot> free;
+  private final BlockingQueue<Slot> filled;
+  /* processed slots at sequence % depth, the writer takes them in order */
+  private final Slot[] completed;
+  private final List<Thread> threads = new ArrayList<>();
+
+  /* first failure of any stage, the other stages stop when it is set */
+  private volatile Throwable failure;
+  /* nanoseconds the stages spent per CipherMetrics.Phase, reading and writing is io */
+  private final AtomicLongArray phaseNanos = new AtomicLongArray(CipherMetrics.Phase.values().length);
+
+  /**
+   * Chunk buffer passed between the stages
+   */
+  private static class Slot {
+    final byte[] input;
+    /* the cipher can hold back up to two blocks which are written with a later chunk */
+    final byte[] output;
+    /* last ciphertext block of the previous chunk for CBC/CFB decryption */
+    final byte[] previous = new byte[CipherStream.BLOCK_SIZE];
+    long sequence;
+    long position;
+    int length;
+    int outputLength;
+    boolean last;
+
+    Slot(int chunkSize) {
+      input = new byte[chunkSize];
+      output = new byte[chunkSize + 2 * CipherStream.BLOCK_SIZE];
+    }
+  }
+
+  /* tells a worker that the input is finished */
+  private static final Slot END = new Slot(0);
+
+  /**
+   * Creates a pipeline with depth chunk slots of the chunk size of the
+   * cipherStream. Several workers are only used when the chunks do not depend
+   * on each other (see CipherStream.hasIndependentChunks), the chained
+   * directions always run on a single worker that carries the chain from one
+   * chunk to the next.
+   *
+   * @param cipherStream
+   * @param depth
+   * @param workers
+   */
+  public PipelinedFileCipher(CipherStream cipherStream, int depth, int workers) {
+    if (depth < 2)
+      throw new IllegalArgumentException("Depth should be at least 2");
+    if (workers < 1)
+      throw new IllegalArgumentException("Workers should be at least 1");
+
+    this.cipherStream = cipherStream;
+    this.depth = depth;
+    this.workers = cipherStream.hasIndependentChunks() ? workers : 1;
+    this.free = new ArrayBlockingQueue<>(depth);
+    this.filled = new ArrayBlockingQueue<>(depth + this.workers);
+    this.completed = new Slot[depth];
+
+    for (int i = 0; i < depth; i++)
+      free.add(new Slot(cipherStream.getChunkSize()));
+  }
+
+  public PipelinedFileCipher(CipherStream cipherStream) {
+    this(cipherStream, DEFAULT_DEPTH, 1);
+  }
+
+  public int getWorkers() {
+    return workers;
+  }
+
+  /**
+   * Reads the input, encrypts/decrypts it and writes it to the output with the
+   * stages running on their own threads. The output is the same as
+   * CipherStream.run gives. A pipeline runs once. The metrics operation gets
+   * the io time of the reader and the writer and the cipher time of the
+   * workers.
+   *
+   * @param in
+   * @param out
+   * @return number of bytes written to the output
+   * @throws IOException
+   * @throws GeneralSecurityException
+   * @throws InterruptedException
+   */
+  public long run(InputStream in, OutputStream out) throws IOException, GeneralSecurityException,
+      InterruptedException {
+    CipherMetrics.Operation operation = CipherMetrics.begin(cipherStream.getAlgorithm(), cipherStream.getMode(),
+        cipherStream.isEncrypt() ? "enc" : "dec");
+    long[] total = new long[1];
+
+    try {
+      start("des-pipeline-reader", () -> total[0] = read(in));
+      for (int i = 0; i < workers; i++)
+        start("des-pipeline-cipher-" + i, this::cipher);
+
+      try {
+        long written = write(out);
+        long mark = System.nanoTime();
+        out.flush();
+        measure(CipherMetrics.Phase.IO, mark);
+        return written;
+      } finally {
+        for (Thread thread : threads)
+          thread.interrupt();
+        for (Thread thread : threads)
+          thread.join();
+      }
+    } finally {
+      /* the stages ran on their own threads, their times are added once they are done */
+      for (CipherMetrics.Phase phase : CipherMetrics.Phase.values())
+        operation.add(phase, phaseNanos.get(phase.ordinal()));
+      operation.end(total[0]);
+    }
+  }
+
+  /**
+   * Adds the time since start to the phase
+   */
+  private void measure(CipherMetrics.Phase phase, long start) {
+    phaseNanos.addAndGet(phase.ordinal(), System.nanoTime() - start);
+  }
+
+  private interface Stage {
+    void run() throws Exception;
+  }
+
+  /**
+   * Starts a stage on a daemon thread, a failure is kept for the writer and
+   * wakes it up
+   */
+  private void start(String name, Stage stage) {
+    Thread thread = new Thread(() -> {
+      try {
+        stage.run();
+      } catch (InterruptedException e) {
+        /* stopped by the writer */
+      } catch (Throwable e) {
+        synchronized (completed) {
+          if (failure == null)
+            failure = e;
+          completed.notifyAll();
+        }
+      }
+    }, name);
+    thread.setDaemon(true);
+    threads.add(thread);
+    thread.start();
+  }
+
+  /**
+   * Fills the slots in order. A full chunk is only passed on once the next
+   * read shows whether it is the last one, so the last chunk is never empty
+   * unless the input is, which the padding of the independent chunks needs.
+   *
+   * @return number of bytes read
+   */
+  private long read(InputStream in) throws IOException, InterruptedException {
+    Slot slot = free.take();
+    slot.sequence = 0;
+    slot.position = 0;
+    long start = System.nanoTime();
+    slot.length = in.readNBytes(slot.input, 0, slot.input.length);
+    measure(CipherMetrics.Phase.IO, start);
+
+    while (slot.length == slot.input.length) {
+      Slot next = free.take();
+      start = System.nanoTime();
+      next.length = in.readNBytes(next.input, 0, next.input.length);
+      measure(CipherMetrics.Phase.IO, start);
+      if (next.length == 0) {
+        free.put(next);
+        break;
+      }
+
+      next.sequence = slot.sequence + 1;
+      next.position = slot.position + slot.length;
+      System.arraycopy(slot.input, slot.length - CipherStream.BLOCK_SIZE, next.previous, 0,
+          CipherStream.BLOCK_SIZE);
+      slot.last = false;
+      filled.put(slot);
+      slot = next;
+    }
+
+    slot.last = true;
+    filled.put(slot);
+    for (int i = 0; i < workers; i++)
+      filled.put(END);
+
+    return slot.position + slot.length;
+  }
+
+  /**
+   * Takes filled slots until the end of the input. A single worker feeds the
+   * chunks in order to the mode instance of the cipherStream, several workers
+   * create a mode instance per chunk.
+   */
+  private void cipher() throws GeneralSecurityException, InterruptedException {
+    for (Slot slot = filled.take(); slot != END; slot = filled.take()) {
+      long start = System.nanoTime();
+      if (workers == 1)
+        slot.outputLength = cipherStream.cryptChunk(slot.input, slot.length, slot.output, slot.last);
+      else
+        slot.outputLength = cipherStream.chunkCipher(slot.position, slot.sequence == 0 ? null : slot.previous,
+            slot.last).doFinal(slot.input, 0, slot.length, slot.output, 0);
+      measure(CipherMetrics.Phase.CIPHER, start);
+
+      synchronized (completed) {
+        completed[(int) (slot.sequence % depth)] = slot;
+        completed.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Writes the processed slots in the order they were read and returns them
+   * to the reader. At most depth slots are in flight, so the slot of the next
+   * sequence number always has its own place in completed.
+   *
+   * @return number of bytes written
+   */
+  private long write(OutputStream out) throws IOException, GeneralSecurityException, InterruptedException {
+    long written = 0;
+
+    for (long sequence = 0;; sequence++) {
+      int index = (int) (sequence % depth);
+      Slot slot;
+      synchronized (completed) {
+        while ((slot = completed[index]) == null || slot.sequence != sequence) {
+          if (failure != null)
+            rethrow(failure);
+          completed.wait();
+        }
+        completed[index] = null;
+      }
+
+      long start = System.nanoTime();
+      written += cipherStream.writeResult(out, slot.output, slot.outputLength);
+      measure(CipherMetrics.Phase.IO, start);
+      if (slot.last)
+        return written;
+      free.put(slot);
+    }
+  }
+
+  private static void rethrow(Throwable failure) throws IOException, GeneralSecurityException {
+    if (failure instanceof IOException)
+      throw (IOException) failure;
+    if (failure instanceof GeneralSecurityException)
+      throw (GeneralSecurityException) failure;
+    if (failure instanceof RuntimeException)
+      throw (RuntimeException) failure;
+    if (failure instanceof Error)
+      throw (Error) failure;
+
+    throw new IOException(failure);
+  }
+}
@@ -0,0 +1,326 @@
+/**
+ * @author Canberk Aslan
+ * Loopback check and load generator for CipherRelay. An echo server is put
+ * behind a decrypting relay, an encrypting relay forwards to the decrypting one
+ * and the clients talk to the encrypting relay, so every byte goes through both
+ * keystreams and has to come back unchanged.
+ * First a single connection sends a large random message and compares the
+ * echo, then many connections run request/response rounds at the same time and
+ * the throughput and round trip latency percentiles are reported.
+ *
+ * Usage: java RelayHarness [-c connections] [-s message size] [-r rounds] [-a DES|TripleDES] [-m CTR|OFB]
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Random;
+
+public class RelayHarness {
+  public static final int LOOPBACK_SIZE = 4 * 1024 * 1024;
+
+  private static final byte[] KEY = "relaykeyforloopbacktests".getBytes(FileIO.ISO_8859_1);
+
+  /**
+   * Starts the echo server and both relays, runs the loopback check and the
+   * load test
+   *
+   * @param args
+   * @throws IOException
+   * @throws GeneralSecurityException
+   * @throws InterruptedException
+   */
+  public static void main(String[] args) throws IOException, GeneralSecurityException, InterruptedException {
+    int connections = 1000, size = 4096, rounds = 20;
+    String algorithm = "DES", mode = "CTR";
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (args[i].equals("-c"))
+        connections = Integer.parseInt(args[i + 1]);
+      else if (args[i].equals("-s"))
+        size = (int) FileCipher.parseSize(args[i + 1]);
+      else if (args[i].equals("-r"))
+        rounds = Integer.parseInt(args[i + 1]);
+      else if (args[i].equals("-a"))
+        algorithm = args[i + 1];
+      else if (args[i].equals("-m"))
+        mode = args[i + 1];
+      else
+        throw new Error("Unknown harness option " + args[i]);
+    }
+
+    InetAddress loopback = InetAddress.getLoopbackAddress();
+    EchoServer echo = new EchoServer(new InetSocketAddress(loopback, 0));
+    CipherRelay decrypting = new CipherRelay(new InetSocketAddress(loopback, 0),
+        new InetSocketAddress(loopback, echo.getPort()), KEY, algorithm, mode, "dec");
+    CipherRelay encrypting = new CipherRelay(new InetSocketAddress(loopback, 0),
+        new InetSocketAddress(loopback, decrypting.getPort()), KEY, algorithm, mode, "enc");
+    Thread[] threads = { new Thread(echo, "echo"), new Thread(decrypting, "relay-dec"),
+        new Thread(encrypting, "relay-enc") };
+    for (Thread thread : threads)
+      thread.start();
+
+    InetSocketAddress entry = new InetSocketAddress(loopback, encrypting.getPort());
+    try {
+      loopback(entry);
+      load(entry, connections, size, rounds);
+    } finally {
+      encrypting.close();
+      decrypting.close();
+      echo.close();
+      for (Thread thread : threads)
+        thread.join();
+    }
+  }
+
+  /**
+   * Sends a random message through the relays on one connection while reading
+   * the echo back, fails if a single byte differs
+   *
+   * @param entry
+   * @throws IOException
+   */
+  public static void loopback(InetSocketAddress entry) throws IOException {
+    byte[] message = new byte[LOOPBACK_SIZE];
+    new Random(LOOPBACK_SIZE).nextBytes(message);
+    ByteBuffer out = ByteBuffer.wrap(message), in = ByteBuffer.allocate(LOOPBACK_SIZE);
+
+    try (Selector selector = Selector.open(); SocketChannel channel = SocketChannel.open(entry)) {
+      channel.configureBlocking(false);
+      SelectionKey selectionKey = channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+      while (in.hasRemaining()) {
+        selector.select();
+        selector.selectedKeys().clear();
+
+        if (selectionKey.isWritable() && channel.write(out) >= 0 && !out.hasRemaining())
+          selectionKey.interestOps(SelectionKey.OP_READ);
+        if (selectionKey.isReadable() && channel.read(in) < 0)
+          break;
+      }
+    }
+
+    if (in.hasRemaining() || !Arrays.equals(message, in.array()))
+      throw new Error("Loopback failed, echo differs from the message");
+
+    System.out.println("loopback " + LOOPBACK_SIZE + " bytes ok");
+  }
+
+  /**
+   * Opens all connections at once, every connection sends the message and
+   * waits for the complete echo before the next round
+   *
+   * @param entry
+   * @param connections
+   * @param size
+   * @param rounds
+   * @throws IOException
+   */
+  public static void load(InetSocketAddress entry, int connections, int size, int rounds) throws IOException {
+    byte[] message = new byte[size];
+    new Random(size).nextBytes(message);
+    long[] latencies = new long[connections * rounds];
+    int samples = 0, finished = 0, mismatches = 0;
+    ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+    long start = System.nanoTime();
+
+    try (Selector selector = Selector.open()) {
+      for (int i = 0; i < connections; i++) {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        LoadClient client = new LoadClient(ByteBuffer.wrap(message));
+        if (channel.connect(entry))
+          client.startRound(channel.register(selector, 0, client));
+        else
+          channel.register(selector, SelectionKey.OP_CONNECT, client);
+      }
+
+      while (finished < connections) {
+        selector.select();
+
+        Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+        while (selected.hasNext()) {
+          SelectionKey selectionKey = selected.next();
+          selected.remove();
+          SocketChannel channel = (SocketChannel) selectionKey.channel();
+          LoadClient client = (LoadClient) selectionKey.attachment();
+
+          if (selectionKey.isConnectable()) {
+            channel.finishConnect();
+            client.startRound(selectionKey);
+            continue;
+          }
+
+          if (selectionKey.isWritable() && channel.write(client.out) >= 0 && !client.out.hasRemaining())
+            selectionKey.interestOps(SelectionKey.OP_READ);
+
+          if (!selectionKey.isReadable())
+            continue;
+
+          in.clear();
+          int read = channel.read(in);
+          if (read < 0)
+            throw new IOException("Relay closed a connection in the middle of a round");
+
+          for (int i = 0; i < read; i++)
+            if (in.get(i) != message[client.received + i])
+              mismatches++;
+
+          client.received += read;
+          if (client.received < size)
+            continue;
+
+          latencies[samples++] = System.nanoTime() - client.sentAt;
+          if (++client.round < rounds) {
+            client.startRound(selectionKey);
+            continue;
+          }
+
+          channel.close();
+          finished++;
+        }
+      }
+    }
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    Arrays.sort(latencies, 0, samples);
+    System.out.println(String.format(Locale.ROOT,
+        "connections=%d size=%d rounds=%d mismatches=%d MB/s=%.2f p50 us=%.1f p99 us=%.1f p99.9 us=%.1f",
+        connections, size, rounds, mismatches, (double) size * samples / (1 << 20) / seconds,
+        percentile(latencies, samples, 0.50) / 1e3, percentile(latencies, samples, 0.99) / 1e3,
+        percentile(latencies, samples, 0.999) / 1e3));
+  }
+
+  private static long percentile(long[] sorted, int length, double p) {
+    return sorted[Math.min(length - 1, (int) Math.ceil(p * length) - 1)];
+  }
+
+  /**
+   * State of one load connection, the message buffer is shared but every
+   * client has its own position in it
+   */
+  private static class LoadClient {
+    private final ByteBuffer out;
+    private int received;
+    private int round;
+    private long sentAt;
+
+    LoadClient(ByteBuffer message) {
+      this.out = message.duplicate();
+    }
+
+    void startRound(SelectionKey selectionKey) {
+      out.rewind();
+      received = 0;
+      sentAt = System.nanoTime();
+      selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+  }
+
+  /**
+   * Single threaded echo server, reading from a connection stops while its
+   * buffer is full
+   */
+  private static class EchoServer implements Runnable {
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private volatile boolean running = true;
+
+    EchoServer(InetSocketAddress listen) throws IOException {
+      selector = Selector.open();
+      server = ServerSocketChannel.open();
+      server.bind(listen, CipherRelay.BACKLOG);
+      server.configureBlocking(false);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    int getPort() {
+      return server.socket().getLocalPort();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (running) {
+          selector.select();
+
+          Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+          while (selected.hasNext()) {
+            SelectionKey selectionKey = selected.next();
+            selected.remove();
+
+            if (selectionKey.isValid() && selectionKey.isAcceptable()) {
+              SocketChannel channel = server.accept();
+              if (channel != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(CipherRelay.BUFFER_SIZE));
+              }
+            } else if (selectionKey.isValid()) {
+              echo(selectionKey);
+            }
+          }
+        }
+      } catch (IOException e) {
+        if (running)
+          throw new UncheckedIOException(e);
+      } finally {
+        for (SelectionKey selectionKey : selector.keys())
+          closeQuietly(selectionKey);
+      }
+    }
+
+    private void echo(SelectionKey selectionKey) {
+      SocketChannel channel = (SocketChannel) selectionKey.channel();
+      ByteBuffer buffer = (ByteBuffer) selectionKey.attachment();
+
+      try {
+        /* end of input is kept on the socket until the rest of the buffer is written */
+        boolean eof = channel.socket().isInputShutdown();
+        if (!eof && selectionKey.isReadable() && channel.read(buffer) < 0) {
+          eof = true;
+          channel.shutdownInput();
+        }
+
+        buffer.flip();
+        channel.write(buffer);
+        buffer.compact();
+
+        if (eof && buffer.position() == 0) {
+          channel.close();
+          return;
+        }
+
+        selectionKey.interestOps((buffer.hasRemaining() && !eof ? SelectionKey.OP_READ : 0)
+            | (buffer.position() > 0 ? SelectionKey.OP_WRITE : 0));
+      } catch (IOException e) {
+        closeQuietly(selectionKey);
+      }
+    }
+
+    private void closeQuietly(SelectionKey selectionKey) {
+      try {
+        selectionKey.channel().close();
+      } catch (IOException e) {
+        /* already closed */
+      }
+    }
+
+    void close() {
+      running = false;
+      selector.wakeup();
+    }
+  }
+}
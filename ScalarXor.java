@@ -0,0 +1,36 @@
+/**
+ * @author Canberk Aslan
+ * Xor kernel without the Vector API, eight bytes are xored at once through
+ * long views of the arrays and the rest byte by byte.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class ScalarXor implements XorKernel {
+  @Override
+  public void xor(byte[] a, int aOff, byte[] b, int bOff, byte[] out, int outOff, int length) {
+    int i = 0;
+    for (; i + BlockEngine.BLOCK_SIZE <= length; i += BlockEngine.BLOCK_SIZE)
+      BlockEngine.writeBlock(BlockEngine.readBlock(a, aOff + i) ^ BlockEngine.readBlock(b, bOff + i), out,
+          outOff + i);
+
+    for (; i < length; i++)
+      out[outOff + i] = (byte) (a[aOff + i] ^ b[bOff + i]);
+  }
+
+  @Override
+  public void xor(byte[] a, int aOff, ByteBuffer b, int bOff, byte[] out, int outOff, int length) {
+    int i = 0;
+    /* the buffer is read with its own byte order, the array with the same one */
+    boolean bigEndian = b.order() == ByteOrder.BIG_ENDIAN;
+    for (; i + BlockEngine.BLOCK_SIZE <= length; i += BlockEngine.BLOCK_SIZE) {
+      long block = b.getLong(bOff + i);
+      BlockEngine.writeBlock(BlockEngine.readBlock(a, aOff + i) ^ (bigEndian ? block : Long.reverseBytes(block)),
+          out, outOff + i);
+    }
+
+    for (; i < length; i++)
+      out[outOff + i] = (byte) (a[aOff + i] ^ b.get(bOff + i));
+  }
+}
@@ -2,29 +2,75 @@
 /**
  * @author Canberk Aslan
  * Simple Cipher for DES and TripleDES encryption/decryption
- * Take algorithm as a string in constructor then creates a cipher instance
- * with desired algorithm. Simple Cipher is responsible for setting the stage
+ * Take algorithm as a string in constructor then creates block engines
+ * with desired algorithm once per key. Simple Cipher is responsible for setting the stage
  * for detailed block cipher mode of operations.
  */
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
 
-public class SimpleCipher {
-  protected Cipher cipher;
+public abstract class SimpleCipher {
   protected String algorithm;
   protected final int DEFAULT_SIZE = 8;
+  /* smallest range of blocks worth handing to a separate worker */
+  protected static final int MIN_PARALLEL_BLOCKS = 4096;
+  /* bytes of keystream computed before they are xored with the data in one pass */
+  protected static final int KEYSTREAM_BATCH = 4096;
+
+  /* state of update/doFinal, opmode is 0 until init is called */
+  protected int opmode;
+  protected Padding padding = Padding.ZERO;
+  /* input not processed yet, at most the last full block and an incomplete one */
+  private final byte[] pending = new byte[DEFAULT_SIZE * 2];
+  private final ByteBuffer pendingView = ByteBuffer.wrap(pending);
+  private int pendingLength;
+  /* output of doFinal for the last blocks, reused so the buffer API does not allocate */
+  private final byte[] finalBlocks = new byte[DEFAULT_SIZE * 2];
+  private final byte[] finalBlock = new byte[DEFAULT_SIZE];
+  private final ByteBuffer finalView = ByteBuffer.wrap(finalBlock);
+  /* keystream of the whole-message OFB/CTR runs, used only when it is enabled */
+  protected KeystreamCache keystreamCache = KeystreamCache.shared();
+
+  /**
+   * A range of blocks that can be processed independently from the others,
+   * worker is a cipher instance owned by the thread running the range
+   */
+  protected interface BlockRange {
+    void process(BlockEngine worker, int from, int to) throws GeneralSecurityException;
+  }
+
+  /*
+   * engines are created once per key and direction, then reused for every block.
+   * Every thread keeps the engines of the last key it used, so repeated runs on
+   * the same thread skip the key setup as well.
+   */
+  private static final ThreadLocal<ThreadEngines> THREAD_ENGINES = ThreadLocal.withInitial(ThreadEngines::new);
 
   SimpleCipher(String algorithm) throws NoSuchAlgorithmException, NoSuchPaddingException {
     this.algorithm = algorithm;
-    this.cipher = Cipher.getInstance(this.algorithm + "/ECB/NoPadding");
+  }
+
+  /**
+   * Sets the cache the keystream modes (OFB, CTR) take their keystream from
+   * when they encrypt/decrypt the whole message, a disabled cache computes it
+   * every time
+   *
+   * @param keystreamCache
+   */
+  public void setKeystreamCache(KeystreamCache keystreamCache) {
+    this.keystreamCache = keystreamCache;
   }
 
   public byte[] encrypt(byte[] message, byte[] key)
@@ -45,9 +91,495 @@ public class SimpleCipher {
    */
   public byte[] crypt(byte[] message, byte[] key, int mode)
       throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-    SecretKey secretKey = new SecretKeySpec(key, 0, key.length, this.algorithm);
-    cipher.init(mode, secretKey);
-    return cipher.doFinal(message);
+    if (message.length % DEFAULT_SIZE != 0)
+      throw new IllegalBlockSizeException("Message length should be a multiple of " + DEFAULT_SIZE);
+
+    BlockEngine engine = engine(key, mode);
+    byte[] ret = new byte[message.length];
+    for (int i = 0; i < message.length; i += DEFAULT_SIZE)
+      engine.processBlock(message, i, ret, i);
+
+    return ret;
+  }
+
+  /**
+   * Prepares the cipher for incremental use with update and doFinal, the
+   * chaining state starts from the iv/counter of the cipher
+   *
+   * @param opmode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+   */
+  public void init(int opmode) {
+    if (opmode != Cipher.ENCRYPT_MODE && opmode != Cipher.DECRYPT_MODE)
+      throw new IllegalArgumentException("Mode should be Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE");
+
+    this.opmode = opmode;
+    Arrays.fill(pending, (byte) 0);
+    pendingLength = 0;
+    resetChain();
+  }
+
+  /**
+   * Sets the padding applied by doFinal, takes effect with the next init
+   *
+   * @param padding
+   */
+  public void setPadding(Padding padding) {
+    this.padding = padding;
+  }
+
+  public Padding getPadding() {
+    return padding;
+  }
+
+  /**
+   * Encrypts/decrypts the complete blocks available so far, the bytes of an
+   * incomplete block are kept until the following call. When the padding needs
+   * the last full block in doFinal (PKCS7 decryption, CTS) that block is kept
+   * as well, CTS keeps the last two blocks of aligned input. Chaining state is
+   * carried from one call to the next so the output is the same as running the
+   * whole message at once. in and out can be the same array.
+   *
+   * @param in
+   * @param inOff
+   * @param len
+   * @param out
+   * @param outOff
+   * @return number of bytes written to out
+   * @throws InvalidKeyException
+   */
+  public int update(byte[] in, int inOff, int len, byte[] out, int outOff) throws InvalidKeyException {
+    if (opmode == 0)
+      throw new IllegalStateException("Cipher should be initialized with init first");
+
+    int total = pendingLength + len, process = total - holdBack(total);
+    if (out.length - outOff < process)
+      throw new IllegalArgumentException("Output should have room for " + process + " bytes");
+
+    /* output lags behind the input when a block is pending, overlapping input is read from a copy */
+    if (in == out && (pendingLength > 0 || inOff != outOff) && len > 0) {
+      in = Arrays.copyOfRange(in, inOff, inOff + len);
+      inOff = 0;
+    }
+
+    int written = 0;
+    if (pendingLength > 0 && process > 0) {
+      /* pending bytes are completed to whole blocks with the new input first */
+      int blocks = Math.min(process, (pendingLength + DEFAULT_SIZE - 1) / DEFAULT_SIZE * DEFAULT_SIZE);
+      int taken = Math.max(0, blocks - pendingLength);
+      System.arraycopy(in, inOff, pending, pendingLength, taken);
+      inOff += taken;
+      len -= taken;
+
+      updateBlocks(pending, 0, blocks, out, outOff);
+      pendingLength += taken - blocks;
+      System.arraycopy(pending, blocks, pending, 0, pendingLength);
+      written = blocks;
+    }
+
+    int direct = process - written;
+    if (direct > 0)
+      updateBlocks(in, inOff, direct, out, outOff + written);
+
+    System.arraycopy(in, inOff + direct, pending, pendingLength, len - direct);
+    pendingLength += len - direct;
+    return process;
+  }
+
+  /**
+   * Processes the remaining input and applies the padding to the last block,
+   * while decrypting PKCS7 padding is checked and removed here so the output
+   * never has to be scanned afterwards. The cipher is reset to the state right
+   * after init.
+   *
+   * @return number of bytes written to out
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException if the input does not fit the padding
+   * @throws BadPaddingException if PKCS7 padding is broken
+   */
+  public int doFinal(byte[] in, int inOff, int len, byte[] out, int outOff)
+      throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    int required = getOutputSize(len);
+    if (out.length - outOff < required)
+      throw new IllegalArgumentException("Output should have room for " + required + " bytes");
+
+    try {
+      int written = update(in, inOff, len, out, outOff);
+      return written + finish(out, outOff + written);
+    } finally {
+      init(opmode);
+    }
+  }
+
+  /**
+   * Same as update on arrays for the bytes of src between its position and
+   * limit, the result is written to dst at its position. Direct and heap
+   * buffers are processed where they are, nothing is copied to a temporary
+   * array. Afterwards src is at its limit and dst after the result. src and dst
+   * can be the same buffer when no bytes are pending from an earlier update,
+   * the result then overwrites the input and the position ends up after the
+   * result. Other buffers sharing memory should not overlap.
+   *
+   * @param src
+   * @param dst
+   * @return number of bytes written to dst
+   * @throws InvalidKeyException
+   */
+  public int update(ByteBuffer src, ByteBuffer dst) throws InvalidKeyException {
+    if (opmode == 0)
+      throw new IllegalStateException("Cipher should be initialized with init first");
+
+    int inOff = src.position(), outOff = dst.position(), len = src.remaining();
+    int total = pendingLength + len, process = total - holdBack(total);
+    boolean inPlace = src == dst;
+    /* the output would run ahead of the input it overwrites */
+    if (inPlace && pendingLength > 0 && len > 0)
+      throw new IllegalStateException("In place update needs the earlier input to be processed completely");
+    if (dst.limit() - outOff < process)
+      throw new IllegalArgumentException("Output should have room for " + process + " bytes");
+
+    if (src.hasArray() && dst.hasArray()) {
+      update(src.array(), src.arrayOffset() + inOff, len, dst.array(), dst.arrayOffset() + outOff);
+    } else {
+      int written = 0;
+      if (pendingLength > 0 && process > 0) {
+        int blocks = Math.min(process, (pendingLength + DEFAULT_SIZE - 1) / DEFAULT_SIZE * DEFAULT_SIZE);
+        int taken = Math.max(0, blocks - pendingLength);
+        src.get(inOff, pending, pendingLength, taken);
+        inOff += taken;
+        len -= taken;
+
+        updateBlocks(pendingView, 0, blocks, dst, outOff);
+        pendingLength += taken - blocks;
+        System.arraycopy(pending, blocks, pending, 0, pendingLength);
+        written = blocks;
+      }
+
+      int direct = process - written;
+      if (direct > 0)
+        updateBlocks(src, inOff, direct, dst, outOff + written);
+
+      src.get(inOff + direct, pending, pendingLength, len - direct);
+      pendingLength += len - direct;
+    }
+
+    if (!inPlace)
+      src.position(src.limit());
+    dst.position(dst.position() + process);
+    return process;
+  }
+
+  /**
+   * Same as doFinal on arrays for buffers, see update(ByteBuffer, ByteBuffer).
+   * When src and dst are the same buffer a result longer than the input (the
+   * padding while encrypting) is written up to the capacity and the limit is
+   * moved to the end of the result.
+   *
+   * @param src
+   * @param dst
+   * @return number of bytes written to dst
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException if the input does not fit the padding
+   * @throws BadPaddingException if PKCS7 padding is broken
+   */
+  public int doFinal(ByteBuffer src, ByteBuffer dst)
+      throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    boolean inPlace = src == dst;
+    int required = getOutputSize(src.remaining()), limit = dst.limit();
+    if ((inPlace ? dst.capacity() : limit) - dst.position() < required)
+      throw new IllegalArgumentException("Output should have room for " + required + " bytes");
+
+    try {
+      int written = update(src, dst);
+      int last = finish(finalBlocks, 0);
+      if (inPlace)
+        dst.limit(Math.max(limit, dst.position() + last));
+      dst.put(finalBlocks, 0, last);
+      return written + last;
+    } finally {
+      init(opmode);
+    }
+  }
+
+  /**
+   * Encrypts the bytes of src between its position and limit into dst in one
+   * call, starting from the iv/counter of the cipher and applying its padding
+   *
+   * @return number of bytes written to dst
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   */
+  public int encrypt(ByteBuffer src, ByteBuffer dst)
+      throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    init(Cipher.ENCRYPT_MODE);
+    return doFinal(src, dst);
+  }
+
+  public int decrypt(ByteBuffer src, ByteBuffer dst)
+      throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    init(Cipher.DECRYPT_MODE);
+    return doFinal(src, dst);
+  }
+
+  public byte[] update(byte[] in) throws InvalidKeyException {
+    int total = pendingLength + in.length;
+    byte[] ret = new byte[total - holdBack(total)];
+    update(in, 0, in.length, ret, 0);
+    return ret;
+  }
+
+  public byte[] doFinal(byte[] in) throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    byte[] ret = new byte[getOutputSize(in.length)];
+    int written = doFinal(in, 0, in.length, ret, 0);
+    return written == ret.length ? ret : Arrays.copyOf(ret, written);
+  }
+
+  /**
+   * Number of bytes doFinal would write for len more input bytes. For PKCS7
+   * decryption it is an upper bound, the padding is known only after the last
+   * block is decrypted.
+   */
+  public int getOutputSize(int len) {
+    int total = pendingLength + len, partial = total % DEFAULT_SIZE;
+
+    if (padding == Padding.ZERO)
+      return partial == 0 ? total : total + DEFAULT_SIZE - partial;
+    if (padding == Padding.PKCS7 && opmode == Cipher.ENCRYPT_MODE)
+      return total - partial + DEFAULT_SIZE;
+
+    return total;
+  }
+
+  /**
+   * Bytes update has to keep for doFinal out of total available bytes
+   */
+  private int holdBack(int total) {
+    boolean lastBlock = padding == Padding.CTS || (padding == Padding.PKCS7 && opmode == Cipher.DECRYPT_MODE);
+    int partial = total % DEFAULT_SIZE;
+
+    /* CTS swaps the last two blocks of an aligned message, both are kept */
+    if (padding == Padding.CTS && partial == 0 && total >= 2 * DEFAULT_SIZE)
+      return 2 * DEFAULT_SIZE;
+    return lastBlock && total >= DEFAULT_SIZE ? partial + DEFAULT_SIZE : partial;
+  }
+
+  /**
+   * Runs the pending bytes of doFinal through the padding
+   *
+   * @return number of bytes written to out
+   */
+  private int finish(byte[] out, int outOff)
+      throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    if (padding == Padding.CTS)
+      return finishStealing(pending, pendingLength, out, outOff);
+
+    if (padding == Padding.PKCS7 && opmode == Cipher.ENCRYPT_MODE) {
+      Arrays.fill(pending, pendingLength, DEFAULT_SIZE, (byte) (DEFAULT_SIZE - pendingLength));
+      System.arraycopy(lastBlock(), 0, out, outOff, DEFAULT_SIZE);
+      return DEFAULT_SIZE;
+    }
+
+    if (padding == Padding.PKCS7) {
+      if (pendingLength != DEFAULT_SIZE)
+        throw new IllegalBlockSizeException("PKCS7 padded ciphertext should be a multiple of " + DEFAULT_SIZE);
+
+      byte[] block = lastBlock();
+      int pad = block[DEFAULT_SIZE - 1];
+      if (pad < 1 || pad > DEFAULT_SIZE)
+        throw new BadPaddingException("Invalid PKCS7 padding length " + pad);
+      for (int i = DEFAULT_SIZE - pad; i < DEFAULT_SIZE; i++)
+        if (block[i] != pad)
+          throw new BadPaddingException("Invalid PKCS7 padding bytes");
+
+      System.arraycopy(block, 0, out, outOff, DEFAULT_SIZE - pad);
+      return DEFAULT_SIZE - pad;
+    }
+
+    if (pendingLength == 0)
+      return 0;
+
+    Arrays.fill(pending, pendingLength, DEFAULT_SIZE, (byte) 0);
+    if (padding == Padding.ZERO) {
+      System.arraycopy(lastBlock(), 0, out, outOff, DEFAULT_SIZE);
+      return DEFAULT_SIZE;
+    }
+
+    /* no padding, only stream modes can cut the last block */
+    if (!isStreamMode())
+      throw new IllegalBlockSizeException("Message should be a multiple of " + DEFAULT_SIZE + " without padding");
+
+    System.arraycopy(lastBlock(), 0, out, outOff, pendingLength);
+    return pendingLength;
+  }
+
+  /**
+   * Runs the first pending block through the mode into finalBlock. It goes
+   * through the buffer variant of updateBlocks, which does not allocate a
+   * keystream batch for a single block.
+   */
+  private byte[] lastBlock() throws InvalidKeyException {
+    updateBlocks(pendingView, 0, DEFAULT_SIZE, finalView, 0);
+    return finalBlock;
+  }
+
+  /**
+   * True for modes which xor the message with a keystream (CFB, OFB, CTR), they
+   * can process an incomplete last block without padding
+   */
+  protected boolean isStreamMode() {
+    return false;
+  }
+
+  /**
+   * Ciphertext stealing for the last full block and the bytes after it, up
+   * to a second full block when the message is aligned. The ciphertext has the
+   * length of the plaintext.
+   *
+   * @return number of bytes written to out
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException if the message is shorter than a block
+   */
+  protected abstract int finishStealing(byte[] in, int length, byte[] out, int outOff)
+      throws InvalidKeyException, IllegalBlockSizeException;
+
+  /**
+   * Ciphertext stealing of the stream modes. They cut the last block anyway,
+   * so the held back bytes are only run through the mode, a last incomplete
+   * block from a zero padded copy.
+   *
+   * @return number of bytes written to out
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException if the message is shorter than a block
+   */
+  protected int finishStream(byte[] in, int length, byte[] out, int outOff)
+      throws InvalidKeyException, IllegalBlockSizeException {
+    if (length < DEFAULT_SIZE)
+      throw new IllegalBlockSizeException("Ciphertext stealing needs at least " + DEFAULT_SIZE + " bytes");
+
+    int full = length / DEFAULT_SIZE * DEFAULT_SIZE;
+    updateBlocks(in, 0, full, out, outOff);
+    if (full < length) {
+      byte[] block = Arrays.copyOfRange(in, full, full + DEFAULT_SIZE);
+      Arrays.fill(block, length - full, DEFAULT_SIZE, (byte) 0);
+      updateBlocks(block, 0, DEFAULT_SIZE, block, 0);
+      System.arraycopy(block, 0, out, outOff + full, length - full);
+    }
+
+    return length;
+  }
+
+  /**
+   * Sets the chaining state of update/doFinal back to its initial value
+   */
+  protected void resetChain() {
+  }
+
+  /**
+   * Runs complete blocks through the mode of operation for update/doFinal and
+   * advances the chaining state, length is a multiple of the block size
+   *
+   * @throws InvalidKeyException
+   */
+  protected abstract void updateBlocks(byte[] in, int inOff, int length, byte[] out, int outOff)
+      throws InvalidKeyException;
+
+  /**
+   * Same as updateBlocks on arrays for direct and heap buffers, the blocks are
+   * read and written at the given indices without moving the positions
+   *
+   * @throws InvalidKeyException
+   */
+  protected abstract void updateBlocks(ByteBuffer in, int inOff, int length, ByteBuffer out, int outOff)
+      throws InvalidKeyException;
+
+  /**
+   * Returns the engine for the given key and direction, the key setup is done
+   * only when the engine is requested for the first time on this thread or the
+   * key changes
+   *
+   * @return initialized block engine
+   * @throws InvalidKeyException
+   */
+  protected BlockEngine engine(byte[] key, int mode) throws InvalidKeyException {
+    return THREAD_ENGINES.get().engine(algorithm, key, mode);
+  }
+
+  /**
+   * Gives the engines of the current thread back to the shared EngineCache.
+   * Short lived threads call this when they are done, so the next thread can
+   * take the engines instead of repeating the key setup.
+   */
+  public static void releaseThreadEngines() {
+    THREAD_ENGINES.get().releaseEngines();
+    THREAD_ENGINES.remove();
+  }
+
+  /**
+   * Engines owned by a single thread, one for each direction of the current key.
+   * When the key changes the engines go back to the shared EngineCache and the
+   * engines of the new key are borrowed from it, so threads switching between a
+   * few keys do not repeat the key setup. A change of the backend property
+   * also swaps the engines, and after EngineCache.clear the engines are
+   * destroyed instead of going back to the cache.
+   */
+  private static class ThreadEngines {
+    private String algorithm;
+    private String backend;
+    private byte[] key;
+    private BlockEngine encryptEngine;
+    private BlockEngine decryptEngine;
+    private int generation = EngineCache.shared().generation();
+
+    BlockEngine engine(String algorithm, byte[] key, int mode) throws InvalidKeyException {
+      int current = EngineCache.shared().generation();
+      if (generation != current) {
+        destroyEngines();
+        generation = current;
+      }
+
+      String backend = BlockEngine.backend();
+      if (this.key == null || !this.algorithm.equals(algorithm) || !this.backend.equals(backend)
+          || !Arrays.equals(this.key, key)) {
+        releaseEngines();
+        this.algorithm = algorithm;
+        this.backend = backend;
+        this.key = key.clone();
+      }
+
+      if (mode == Cipher.ENCRYPT_MODE)
+        return encryptEngine != null ? encryptEngine
+            : (encryptEngine = EngineCache.shared().borrow(algorithm, this.key, mode));
+
+      return decryptEngine != null ? decryptEngine
+          : (decryptEngine = EngineCache.shared().borrow(algorithm, this.key, mode));
+    }
+
+    private void releaseEngines() {
+      if (key == null)
+        return;
+
+      if (encryptEngine != null)
+        EngineCache.shared().release(algorithm, key, Cipher.ENCRYPT_MODE, encryptEngine);
+      if (decryptEngine != null)
+        EngineCache.shared().release(algorithm, key, Cipher.DECRYPT_MODE, decryptEngine);
+
+      Arrays.fill(key, (byte) 0);
+      encryptEngine = null;
+      decryptEngine = null;
+    }
+
+    private void destroyEngines() {
+      if (encryptEngine != null)
+        encryptEngine.destroy();
+      if (decryptEngine != null)
+        decryptEngine.destroy();
+
+      if (key != null)
+        Arrays.fill(key, (byte) 0);
+      key = null;
+      encryptEngine = null;
+      decryptEngine = null;
+    }
   }
 
   /**
@@ -71,51 +603,133 @@ public class SimpleCipher {
   }
 
   /**
-   * Since the message can be bigger than 64 bits, this method is responsible for
-   * dividing them into 64
-   * bit blocks, if any given block is shorter than 64 bits this method applies
-   * padding.
+   * Since the message might not be a multiple of 64 bits, this method pads the
+   * last block with zeros. If the message is already aligned it is used as it
+   * is, the modes never write into their input.
    * 
-   * @return distributed message
+   * @return padded message
    */
-  public byte[][] distributeMessage(byte[] message) {
-    int predictedMessageBlockLength = (message.length % DEFAULT_SIZE == 0)
-        ? (message.length / DEFAULT_SIZE)
-        : ((message.length / DEFAULT_SIZE) + 1);
+  public byte[] padMessage(byte[] message) {
+    if (message.length % DEFAULT_SIZE == 0)
+      return message;
 
-    byte[][] distributedMessage = new byte[predictedMessageBlockLength][DEFAULT_SIZE];
-    for (int i = 0; i < predictedMessageBlockLength; i++)
-      for (int j = 0; j < DEFAULT_SIZE; j++)
-        distributedMessage[i][j] = ((i * DEFAULT_SIZE + j) < message.length) ? message[i * DEFAULT_SIZE + j] : (byte) 0;
+    return Arrays.copyOf(message, message.length + DEFAULT_SIZE - (message.length % DEFAULT_SIZE));
+  }
 
-    return distributedMessage;
+  /**
+   * Loads the 64 bit block at off as a long, the modes keep their chaining state
+   * in longs so it can stay in registers
+   */
+  protected static long readBlock(byte[] in, int off) {
+    return BlockEngine.readBlock(in, off);
+  }
+
+  protected static void writeBlock(long block, byte[] out, int off) {
+    BlockEngine.writeBlock(block, out, off);
   }
 
   /**
-   * This method is responsible for joining 64 bit blocks together
-   * 
-   * @return byte array of joined message
+   * Loads the block at the index of the buffer, big endian whatever the order
+   * of the buffer is
    */
-  public byte[] joinMessage(byte[][] message) {
-    int length = message.length;
-    byte[] ret = new byte[length * DEFAULT_SIZE];
-    for (int i = 0; i < message.length; i++)
-      for (int j = 0; j < DEFAULT_SIZE; j++)
-        ret[(i * DEFAULT_SIZE) + j] = message[i][j];
+  protected static long readBlock(ByteBuffer in, int off) {
+    long block = in.getLong(off);
+    return in.order() == ByteOrder.BIG_ENDIAN ? block : Long.reverseBytes(block);
+  }
 
-    return ret;
+  protected static void writeBlock(long block, ByteBuffer out, int off) {
+    out.putLong(off, out.order() == ByteOrder.BIG_ENDIAN ? block : Long.reverseBytes(block));
   }
 
   /**
-   * This method is responsible for applying xor operation for arr1 and arr2
-   * 
-   * @return new byte array, result of arr1 xor arr2
+   * Splits length blocks into ranges and processes them on the given pool.
+   * Every range runs on the engine of its worker thread since cipher instances
+   * are not thread safe.
+   *
+   * @param pool
+   * @param length
+   * @param key
+   * @param mode
+   * @param range
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
    */
-  public byte[] xorArrays(byte[] arr1, byte[] arr2, int size) {
-    byte[] ret = new byte[size];
-    for (int i = 0; i < size; i++)
-      ret[i] = (byte) (arr1[i] ^ arr2[i]);
+  protected void processParallel(ForkJoinPool pool, int length, byte[] key, int mode, BlockRange range)
+      throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException,
+      BadPaddingException {
+    int rangeSize = Math.max(MIN_PARALLEL_BLOCKS, length / (pool.getParallelism() * 4) + 1);
 
-    return ret;
+    try {
+      pool.invoke(new ParallelRange(range, key, mode, 0, length, rangeSize));
+    } catch (RuntimeException e) {
+      rethrowCryptoException(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Checked exceptions cannot leave a fork join task, they are wrapped by the
+   * workers and thrown again here
+   */
+  private static void rethrowCryptoException(RuntimeException e) throws NoSuchAlgorithmException,
+      NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    Throwable cause = e.getCause();
+    /* fork join pool can wrap the exception of the worker once more */
+    while (cause instanceof RuntimeException && cause.getCause() != null)
+      cause = cause.getCause();
+
+    if (cause instanceof NoSuchAlgorithmException)
+      throw (NoSuchAlgorithmException) cause;
+    if (cause instanceof NoSuchPaddingException)
+      throw (NoSuchPaddingException) cause;
+    if (cause instanceof InvalidKeyException)
+      throw (InvalidKeyException) cause;
+    if (cause instanceof IllegalBlockSizeException)
+      throw (IllegalBlockSizeException) cause;
+    if (cause instanceof BadPaddingException)
+      throw (BadPaddingException) cause;
+  }
+
+  /**
+   * Splits itself in half until the range is small enough, then runs the range
+   * with the engine of the current worker thread
+   */
+  private class ParallelRange extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final BlockRange range;
+    private final byte[] key;
+    private final int mode;
+    private final int from;
+    private final int to;
+    private final int rangeSize;
+
+    ParallelRange(BlockRange range, byte[] key, int mode, int from, int to, int rangeSize) {
+      this.range = range;
+      this.key = key;
+      this.mode = mode;
+      this.from = from;
+      this.to = to;
+      this.rangeSize = rangeSize;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > rangeSize) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new ParallelRange(range, key, mode, from, middle, rangeSize),
+            new ParallelRange(range, key, mode, middle, to, rangeSize));
+        return;
+      }
+
+      try {
+        range.process(engine(key, mode), from, to);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+    }
   }
 }
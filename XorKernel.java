@@ -0,0 +1,52 @@
+/**
+ * @author Canberk Aslan
+ * Bulk xor of a buffer with a keystream. The keystream modes compute the
+ * keystream of many blocks first and then xor it with the data in one pass
+ * over the whole buffer.
+ * The vector kernel (vector/VectorXor.java) uses the incubating Vector API, it
+ * is compiled and run with --add-modules jdk.incubator.vector and looked up
+ * reflectively, so the rest of the code builds without the module. When it is
+ * missing the scalar kernel xors eight bytes at a time.
+ */
+
+import java.nio.ByteBuffer;
+
+public interface XorKernel {
+  /* system property selecting the kernel, vector (default when available) or scalar */
+  String KERNEL_PROPERTY = "des.xor";
+  XorKernel DEFAULT = create();
+
+  /**
+   * out[outOff + i] = a[aOff + i] ^ b[bOff + i] for i below length, out can be
+   * one of the inputs at the same offset
+   */
+  void xor(byte[] a, int aOff, byte[] b, int bOff, byte[] out, int outOff, int length);
+
+  /**
+   * Same as the array xor with b read from a (direct) buffer at absolute
+   * offsets, the position of b is not changed
+   */
+  void xor(byte[] a, int aOff, ByteBuffer b, int bOff, byte[] out, int outOff, int length);
+
+  /**
+   * Kernel used by the modes
+   */
+  static XorKernel get() {
+    return DEFAULT;
+  }
+
+  /**
+   * Vector kernel if it was compiled and the module is present, scalar
+   * otherwise
+   */
+  static XorKernel create() {
+    if (System.getProperty(KERNEL_PROPERTY, "vector").equals("scalar"))
+      return new ScalarXor();
+
+    try {
+      return (XorKernel) Class.forName("VectorXor").getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException | LinkageError e) {
+      return new ScalarXor();
+    }
+  }
+}
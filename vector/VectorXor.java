@@ -0,0 +1,44 @@
+/**
+ * @author Canberk Aslan
+ * Xor kernel on the incubating Vector API. Whole vectors of the preferred
+ * species are xored at once, the tail shorter than a vector goes to the
+ * scalar kernel. Compiled separately since it needs the module:
+ *
+ * javac --add-modules jdk.incubator.vector -cp . vector/VectorXor.java -d .
+ * java --add-modules jdk.incubator.vector FileCipher ...
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+public class VectorXor implements XorKernel {
+  private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+  private final ScalarXor tail = new ScalarXor();
+
+  @Override
+  public void xor(byte[] a, int aOff, byte[] b, int bOff, byte[] out, int outOff, int length) {
+    int i = 0, bound = SPECIES.loopBound(length);
+    for (; i < bound; i += SPECIES.length())
+      ByteVector.fromArray(SPECIES, a, aOff + i)
+          .lanewise(VectorOperators.XOR, ByteVector.fromArray(SPECIES, b, bOff + i))
+          .intoArray(out, outOff + i);
+
+    tail.xor(a, aOff + i, b, bOff + i, out, outOff + i, length - i);
+  }
+
+  @Override
+  public void xor(byte[] a, int aOff, ByteBuffer b, int bOff, byte[] out, int outOff, int length) {
+    int i = 0, bound = SPECIES.loopBound(length);
+    for (; i < bound; i += SPECIES.length())
+      ByteVector.fromArray(SPECIES, a, aOff + i)
+          .lanewise(VectorOperators.XOR, ByteVector.fromByteBuffer(SPECIES, b, bOff + i, ByteOrder.BIG_ENDIAN))
+          .intoArray(out, outOff + i);
+
+    tail.xor(a, aOff + i, b, bOff + i, out, outOff + i, length - i);
+  }
+}